@@ -0,0 +1,246 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable holder for the XML attributes Split and Merge need. parse() scans
+ * the attributes of one element in place, straight from its UTF-8 bytes, and
+ * stores them in primitive fields, so parsing an element does not allocate
+ * (except for a member role that differs from the previous one).
+ */
+public class Attributes {
+    public static final String NODE = "node";
+    public static final String WAY = "way";
+    public static final String RELATION = "relation";
+
+    public long id, ref, tn;
+    public float lat, lon;
+    public float minlat, minlon, maxlat, maxlon;
+    public String type, role;
+    public boolean hasId, hasRef, hasTn, hasLat, hasLon, hasRole;
+
+    /**
+     * parse: parse the XML attributes of an element
+     * @param b - buffer
+     * @param start - position of the element's '<'
+     * @param end - end of the element
+     */
+    public void parse(byte[] b, int start, int end) {
+        hasId = hasRef = hasTn = hasLat = hasLon = hasRole = false;
+        type = null;
+
+        int i = start;
+
+        //skip element name
+        while (i < end && !isSpace(b[i]) && b[i] != '>') i++;
+
+        while (i < end) {
+            //skip whitespace
+            while (i < end && isSpace(b[i])) i++;
+            if (i >= end || b[i] == '/' || b[i] == '>') break;
+
+            //key
+            int keyStart = i;
+            while (i < end && b[i] != '=' && !isSpace(b[i])) i++;
+            int keyEnd = i;
+
+            //=
+            while (i < end && isSpace(b[i])) i++;
+            if (i >= end || b[i] != '=') continue;
+            i++;
+            while (i < end && isSpace(b[i])) i++;
+            if (i >= end) break;
+
+            //value
+            byte quote = b[i];
+            if (quote != '"' && quote != '\'') continue;
+            int valueStart = ++i;
+            while (i < end && b[i] != quote) i++;
+            int valueEnd = i++;
+
+            store(b, keyStart, keyEnd - keyStart, valueStart, valueEnd);
+        }
+    }
+
+    /**
+     * store: store a value if its key is one of ours
+     * @param b
+     * @param key - start of the key
+     * @param keyLength
+     * @param start - start of the value
+     * @param end - end of the value
+     */
+    private void store(byte[] b, int key, int keyLength, int start, int end) {
+        switch (keyLength) {
+        case 2:
+            if (match(b, key, "id")) {
+                id = parseLong(b, start, end);
+                hasId = true;
+            }
+            else if (match(b, key, "tn")) {
+                tn = parseLong(b, start, end);
+                hasTn = true;
+            }
+            break;
+        case 3:
+            if (match(b, key, "ref")) {
+                ref = parseLong(b, start, end);
+                hasRef = true;
+            }
+            else if (match(b, key, "lat")) {
+                lat = parseFloat(b, start, end);
+                hasLat = true;
+            }
+            else if (match(b, key, "lon")) {
+                lon = parseFloat(b, start, end);
+                hasLon = true;
+            }
+            break;
+        case 4:
+            if (match(b, key, "type")) {
+                type = match(b, start, end, NODE) ? NODE : match(b, start, end, WAY) ? WAY
+                        : match(b, start, end, RELATION) ? RELATION : string(b, start, end);
+            }
+            else if (match(b, key, "role")) {
+                if (role == null || !match(b, start, end, role)) {
+                    role = string(b, start, end);
+                }
+                hasRole = true;
+            }
+            break;
+        case 6:
+            if (match(b, key, "minlat")) minlat = parseFloat(b, start, end);
+            else if (match(b, key, "minlon")) minlon = parseFloat(b, start, end);
+            else if (match(b, key, "maxlat")) maxlat = parseFloat(b, start, end);
+            else if (match(b, key, "maxlon")) maxlon = parseFloat(b, start, end);
+            break;
+        }
+    }
+
+    /**
+     * role: the role of a member, "" if the element had none
+     * @return
+     */
+    public String role() {
+        return hasRole ? role : "";
+    }
+
+    static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /**
+     * match: compare bytes with an ASCII String
+     */
+    static boolean match(byte[] b, int start, int end, String s) {
+        if (end - start != s.length()) return false;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (b[start + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    static boolean match(byte[] b, int start, String s) {
+        return start + s.length() <= b.length && match(b, start, start + s.length(), s);
+    }
+
+    static String string(byte[] b, int start, int end) {
+        return new String(b, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * parseLong: parse a decimal integer without creating a String
+     * @param b
+     * @param start
+     * @param end
+     * @return
+     */
+    static long parseLong(byte[] b, int start, int end) {
+        int i = start;
+        boolean negative = i < end && b[i] == '-';
+        if (negative) i++;
+        if (i >= end) throw new NumberFormatException("For input string: \"" + string(b, start, end) + "\"");
+
+        long result = 0;
+
+        for (; i < end; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("For input string: \"" + string(b, start, end) + "\"");
+            result = result*10 + d;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * parseFloat: parse a plain decimal number (e.g. a coordinate) without
+     * creating a String. Falls back to Float.parseFloat for other notations
+     * and for the rare values where rounding via double could differ.
+     * @param b
+     * @param start
+     * @param end
+     * @return
+     */
+    static float parseFloat(byte[] b, int start, int end) {
+        int i = start;
+        boolean negative = i < end && b[i] == '-';
+        if (negative) i++;
+
+        long mantissa = 0;
+        int digits = 0, scale = -1;
+
+        for (; i < end; i++) {
+            byte c = b[i];
+
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            }
+            else if (c >= '0' && c <= '9' && digits < 15) {
+                mantissa = mantissa*10 + (c - '0');
+                if (mantissa > 0) digits++;
+                if (scale >= 0) scale++;
+            }
+            else {
+                return Float.parseFloat(string(b, start, end));
+            }
+        }
+        if (scale > 22 || i == start || (negative && i == start + 1)) {
+            return Float.parseFloat(string(b, start, end));
+        }
+
+        //exact for mantissas below 2^53 and scales up to 22
+        double d = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        float f = (float)d;
+
+        //double rounding: d lies exactly between two floats
+        if ((double)f != d) {
+            float other = d > f ? Math.nextUp(f) : Math.nextDown(f);
+            if (((double)f + (double)other) / 2 == d) {
+                return Float.parseFloat(string(b, start, end));
+            }
+        }
+        return negative ? -f : f;
+    }
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write-behind buffered output for one tile file. Written bytes stay in
+ * memory until the buffer reaches MAX_SIZE, until the TileWriterPool needs
+ * the memory for other tiles, or until flush()/close() is called. The buffer
+ * grows on demand and is released when the pool flushes it.
+ *
+ * The file is created (truncated) by the constructor, but only kept open
+ * while the pool allows it: buffers are written through a handle from the
+ * pool, which reopens the file after it has been evicted.
+ *
+ * Bytes written earlier can be read back with read(), whether they are still
+ * buffered or already in the file.
+ */
+public class BufferedTileWriter extends RandomAccessOutput {
+    static final int INITIAL_SIZE = 4096;
+    static final int MAX_SIZE = 1 << 20;
+
+    String fileName;
+    TileWriterPool pool;
+    int poolIndex = -1;
+
+    FileChannel out;    //open handle, managed by the pool
+    private byte[] buf;
+    private int count;
+    private long written;   //bytes in the file
+
+    public BufferedTileWriter(String fileName, TileWriterPool pool) throws IOException {
+        this.fileName = fileName;
+        this.pool = pool;
+        new FileOutputStream(fileName).close();
+        pool.register(this);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == MAX_SIZE) {
+            flushBuffer();
+        }
+        if (buf == null || count == buf.length) {
+            reserve(1);
+        }
+        buf[count++] = (byte)b;
+        pool.buffered(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (count + len > MAX_SIZE) {
+            flushBuffer();
+
+            if (len > MAX_SIZE) {
+                writeFile(b, off, len);
+                return;
+            }
+        }
+        if (buf == null || count + len > buf.length) {
+            reserve(len);
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        pool.buffered(len);
+    }
+
+    /**
+     * reserve: grow the buffer to hold len more bytes
+     * @param len
+     */
+    private void reserve(int len) {
+        int size = buf == null ? INITIAL_SIZE : buf.length;
+
+        while (size < count + len) size *= 2;
+
+        byte[] larger = new byte[Math.min(size, MAX_SIZE)];
+        if (buf != null) System.arraycopy(buf, 0, larger, 0, count);
+        buf = larger;
+    }
+
+    @Override
+    public long position() {
+        return written + count;
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+        if (position + len > position()) {
+            throw new EOFException("read beyond the end of " + fileName);
+        }
+
+        //the part that is in the file
+        if (position < written) {
+            int n = (int)Math.min(len, written - position);
+            ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+
+            //hold the pool, so that no other thread closes the handle meanwhile
+            synchronized (pool) {
+                FileChannel channel = pool.open(this);
+
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb, position + bb.position() - off) < 0) {
+                        throw new EOFException("unexpected end of " + fileName);
+                    }
+                }
+            }
+            position += n;
+            off += n;
+            len -= n;
+        }
+
+        //the part that is still buffered
+        if (len > 0) {
+            System.arraycopy(buf, (int)(position - written), b, off, len);
+        }
+    }
+
+    /**
+     * buffered: number of bytes not written to the file yet
+     * @return
+     */
+    int buffered() {
+        return count;
+    }
+
+    /**
+     * flushBuffer: write the buffered bytes to the file
+     * @throws IOException
+     */
+    void flushBuffer() throws IOException {
+        if (count > 0) {
+            writeFile(buf, 0, count);
+            pool.released(count);
+            count = 0;
+        }
+    }
+
+    /**
+     * writeFile: append bytes to the file
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    private void writeFile(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+
+        synchronized (pool) {
+            FileChannel channel = pool.open(this);
+
+            while (bb.hasRemaining()) {
+                written += channel.write(bb, written);
+            }
+        }
+    }
+
+    /**
+     * release: write the buffered bytes and give up the buffer
+     * @throws IOException
+     */
+    void release() throws IOException {
+        flushBuffer();
+        buf = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        pool.unregister(this);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decoder for single bzip2 blocks. A block is decoded from the bit where its
+ * block magic starts, so blocks can be decoded independently of each other
+ * and in parallel (see Bzip2InputStream).
+ *
+ * A decoder keeps its tables between blocks; use one per thread.
+ */
+public class Bzip2Decoder {
+    static final long BLOCK_MAGIC = 0x314159265359L;
+    static final int MAX_BLOCK_SIZE = 900000;
+    static final int MAX_GROUPS = 6;
+    static final int MAX_ALPHA_SIZE = 258;
+    static final int MAX_CODE_LEN = 23;
+    static final int MAX_SELECTORS = 18002;
+    static final int RUNA = 0;
+    static final int RUNB = 1;
+
+    static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 24;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+            }
+            CRC_TABLE[i] = c;
+        }
+    }
+
+    /**
+     * Thrown when a block does not end within the given data.
+     */
+    static class TruncatedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TruncatedException() {
+            super("truncated bzip2 block");
+        }
+    }
+
+    //bit input
+    private byte[] in;
+    private int bytePos, limit, accBits;
+    private long acc;
+
+    //tables
+    private int[] tt = new int[MAX_BLOCK_SIZE];
+    private int[] unzftab = new int[256], cftab = new int[257];
+    private byte[] seqToUnseq = new byte[256], yy = new byte[256];
+    private byte[] selectorMtf = new byte[MAX_SELECTORS], selector = new byte[MAX_SELECTORS];
+    private int[][] len = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+    private int[][] limits = new int[MAX_GROUPS][MAX_CODE_LEN + 1];
+    private int[][] bases = new int[MAX_GROUPS][MAX_CODE_LEN + 1];
+    private int[][] perms = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+    private int[] minLens = new int[MAX_GROUPS], maxLens = new int[MAX_GROUPS];
+
+    //result
+    public byte[] out = new byte[MAX_BLOCK_SIZE];
+    public int outLength;
+    public long endBit;     //bit after the block, relative to the data
+
+    /**
+     * decode: decode a block
+     * @param data
+     * @param startBit - bit where the block magic starts
+     * @param length - bytes of data that may be read
+     * @throws IOException - bad data or CRC
+     * @throws TruncatedException - the block does not end within length
+     */
+    public void decode(byte[] data, long startBit, int length) throws IOException {
+        in = data;
+        limit = length;
+        bytePos = (int)(startBit >>> 3);
+        acc = 0;
+        accBits = 0;
+        bits((int)(startBit & 7));
+
+        if (((long)bits(24) << 24 | bits(24)) != BLOCK_MAGIC) {
+            throw new IOException("no bzip2 block magic");
+        }
+        int blockCrc = bits(16) << 16 | bits(16);
+
+        if (bits(1) != 0) {
+            throw new IOException("randomised bzip2 blocks are not supported");
+        }
+        int origPtr = bits(24);
+
+        //symbols in use
+        int used = bits(16), nInUse = 0;
+        for (int i = 0; i < 16; i++) {
+            if ((used & (0x8000 >>> i)) != 0) {
+                int b = bits(16);
+                for (int j = 0; j < 16; j++) {
+                    if ((b & (0x8000 >>> j)) != 0) seqToUnseq[nInUse++] = (byte)(i*16 + j);
+                }
+            }
+        }
+        if (nInUse == 0) throw new IOException("bzip2 block uses no symbols");
+        int alphaSize = nInUse + 2;
+
+        //selectors
+        int nGroups = bits(3);
+        int nSelectors = bits(15);
+        if (nGroups < 2 || nGroups > MAX_GROUPS || nSelectors < 1) {
+            throw new IOException("bad bzip2 block header");
+        }
+        for (int i = 0; i < nSelectors; i++) {
+            int j = 0;
+            while (bits(1) == 1) {
+                if (++j >= nGroups) throw new IOException("bad bzip2 selector");
+            }
+            if (i < MAX_SELECTORS) selectorMtf[i] = (byte)j;
+        }
+        nSelectors = Math.min(nSelectors, MAX_SELECTORS);
+
+        byte[] pos = new byte[MAX_GROUPS];
+        for (int i = 0; i < nGroups; i++) pos[i] = (byte)i;
+        for (int i = 0; i < nSelectors; i++) {
+            int v = selectorMtf[i];
+            byte tmp = pos[v];
+            while (v > 0) {
+                pos[v] = pos[v - 1];
+                v--;
+            }
+            pos[0] = tmp;
+            selector[i] = tmp;
+        }
+
+        //code lengths and decoding tables
+        for (int t = 0; t < nGroups; t++) {
+            int curr = bits(5);
+            for (int i = 0; i < alphaSize; i++) {
+                while (true) {
+                    if (curr < 1 || curr > 20) throw new IOException("bad bzip2 code length");
+                    if (bits(1) == 0) break;
+                    curr += bits(1) == 0 ? 1 : -1;
+                }
+                len[t][i] = curr;
+            }
+            int minLen = 32, maxLen = 0;
+            for (int i = 0; i < alphaSize; i++) {
+                maxLen = Math.max(maxLen, len[t][i]);
+                minLen = Math.min(minLen, len[t][i]);
+            }
+            createDecodeTables(limits[t], bases[t], perms[t], len[t], minLen, maxLen, alphaSize);
+            minLens[t] = minLen;
+            maxLens[t] = maxLen;
+        }
+
+        //MTF values and runs
+        int eob = nInUse + 1;
+        int groupNo = -1, groupPos = 0, nblock = 0;
+        int[] lim = null, base = null, perm = null;
+        int minLen = 0, maxLen = 0;
+
+        Arrays.fill(unzftab, 0);
+        for (int i = 0; i < 256; i++) yy[i] = (byte)i;
+
+        int sym;
+        int es = 0, n = 1;     //run being decoded
+
+        while (true) {
+            //next symbol
+            if (groupPos == 0) {
+                if (++groupNo >= nSelectors) throw new IOException("bzip2 selectors exhausted");
+                groupPos = 50;
+                int t = selector[groupNo];
+                lim = limits[t];
+                base = bases[t];
+                perm = perms[t];
+                minLen = minLens[t];
+                maxLen = maxLens[t];
+            }
+            groupPos--;
+
+            int zn = minLen;
+            int zvec = bits(zn);
+            while (zvec > lim[zn]) {
+                if (++zn > maxLen) throw new IOException("bad bzip2 code");
+                zvec = (zvec << 1) | bits(1);
+            }
+            int p = zvec - base[zn];
+            if (p < 0 || p >= alphaSize) throw new IOException("bad bzip2 code");
+            sym = perm[p];
+
+            if (sym == RUNA || sym == RUNB) {
+                if (n >= 2*1024*1024) throw new IOException("bzip2 run too long");
+                es += (sym == RUNA ? 1 : 2) * n;
+                n <<= 1;
+                continue;
+            }
+            //end of a run
+            if (es > 0) {
+                int uc = seqToUnseq[yy[0] & 0xff] & 0xff;
+                if (nblock + es > MAX_BLOCK_SIZE) throw new IOException("bzip2 block too large");
+                unzftab[uc] += es;
+                while (es-- > 0) tt[nblock++] = uc;
+                es = 0;
+                n = 1;
+            }
+            if (sym == eob) break;
+
+            //move to front
+            int nn = sym - 1;
+            byte uc = yy[nn];
+            System.arraycopy(yy, 0, yy, 1, nn);
+            yy[0] = uc;
+
+            int b = seqToUnseq[uc & 0xff] & 0xff;
+            if (nblock >= MAX_BLOCK_SIZE) throw new IOException("bzip2 block too large");
+            unzftab[b]++;
+            tt[nblock++] = b;
+        }
+        endBit = (long)bytePos*8 - accBits;
+
+        if (origPtr < 0 || origPtr >= nblock) throw new IOException("bad bzip2 origPtr");
+
+        //inverse BWT
+        cftab[0] = 0;
+        for (int i = 0; i < 256; i++) cftab[i + 1] = cftab[i] + unzftab[i];
+        for (int i = 0; i < nblock; i++) {
+            int uc = tt[i] & 0xff;
+            tt[cftab[uc]++] |= i << 8;
+        }
+
+        //undo the initial run-length encoding while walking the BWT
+        int tPos = tt[origPtr] >>> 8;
+        int crc = 0xffffffff;
+        int last = -1, run = 0;
+        outLength = 0;
+
+        for (int k = 0; k < nblock; k++) {
+            tPos = tt[tPos];
+            int ch = tPos & 0xff;
+            tPos >>>= 8;
+
+            if (run == 4) {
+                reserve(ch);
+                for (int c = 0; c < ch; c++) {
+                    out[outLength++] = (byte)last;
+                    crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ last) & 0xff];
+                }
+                run = 0;
+                last = -1;
+                continue;
+            }
+            if (ch == last) {
+                run++;
+            }
+            else {
+                run = 1;
+                last = ch;
+            }
+            reserve(1);
+            out[outLength++] = (byte)ch;
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ ch) & 0xff];
+        }
+
+        if (~crc != blockCrc) {
+            throw new IOException("bzip2 block CRC mismatch");
+        }
+    }
+
+    private void reserve(int n) {
+        if (outLength + n > out.length) {
+            out = Arrays.copyOf(out, Math.max(outLength + n, out.length*2));
+        }
+    }
+
+    /**
+     * bits: read n bits (at most 24)
+     * @param n
+     * @return
+     * @throws TruncatedException
+     */
+    private int bits(int n) throws TruncatedException {
+        while (accBits < n) {
+            if (bytePos >= limit) throw new TruncatedException();
+            acc = (acc << 8) | (in[bytePos++] & 0xff);
+            accBits += 8;
+        }
+        accBits -= n;
+        return (int)((acc >>> accBits) & ((1L << n) - 1));
+    }
+
+    /**
+     * createDecodeTables: canonical Huffman decoding tables, as in the
+     * reference implementation
+     */
+    private static void createDecodeTables(int[] limit, int[] base, int[] perm, int[] length, int minLen, int maxLen, int alphaSize) {
+        int pp = 0;
+        for (int i = minLen; i <= maxLen; i++) {
+            for (int j = 0; j < alphaSize; j++) {
+                if (length[j] == i) perm[pp++] = j;
+            }
+        }
+
+        Arrays.fill(base, 0);
+        for (int i = 0; i < alphaSize; i++) base[length[i] + 1]++;
+        for (int i = 1; i < base.length; i++) base[i] += base[i - 1];
+
+        Arrays.fill(limit, 0);
+        int vec = 0;
+        for (int i = minLen; i <= maxLen; i++) {
+            vec += base[i + 1] - base[i];
+            limit[i] = vec - 1;
+            vec <<= 1;
+        }
+        for (int i = minLen + 1; i <= maxLen; i++) {
+            base[i] = ((limit[i - 1] + 1) << 1) - base[i];
+        }
+    }
+}
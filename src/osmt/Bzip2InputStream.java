@@ -0,0 +1,329 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streaming bzip2 decompression with parallel block decoding. Works for
+ * single-stream files and for the concatenated streams of pbzip2/lbzip2.
+ *
+ * A reader thread searches the compressed input for block magics (at any bit
+ * offset) and cuts it into one slice per block; worker threads decode the
+ * slices with a Bzip2Decoder each, and read() returns the blocks in order.
+ *
+ * The block magic may also occur by chance inside compressed data. Such a
+ * false block starts before the end of the block it is in and is skipped;
+ * the true block it cut short is decoded again from the joined slices.
+ */
+public class Bzip2InputStream extends InputStream {
+    static final int READ_SIZE = 1 << 20;
+    static final int MAX_JOINED = 4;    //slices joined when a block does not fit its own
+
+    /**
+     * The compressed data of a block and its decoded bytes.
+     */
+    static class Slice {
+        byte[] data;
+        long offset;        //of data[0] in the input
+        int startBit;       //of the block magic in data
+        int length;         //bytes up to the next slice
+
+        byte[] out;
+        int outLength;
+        long endBit;        //in the input
+        private boolean decoded;
+        private IOException error;
+
+        synchronized void done(IOException e) {
+            error = e;
+            decoded = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (!decoded) {
+                wait();
+            }
+        }
+
+        long start() {
+            return offset*8 + startBit;
+        }
+    }
+
+    private static final Slice END = new Slice();
+
+    private InputStream in;
+    private BlockingQueue<Slice> decode, ordered;
+    private Thread reader;
+    private Thread[] workers;
+    private volatile IOException error;
+
+    private Slice current;
+    private ArrayDeque<Slice> taken = new ArrayDeque<Slice>();   //by decodeJoined
+    private int pos;
+    private long end;       //end bit of the last block returned
+    private Bzip2Decoder decoder;   //for joined slices
+
+    /**
+     * Constructor: start the reader and decoder threads
+     * @param in - compressed input
+     * @param threads - number of decoder threads
+     */
+    public Bzip2InputStream(InputStream in, int threads) {
+        this.in = in;
+
+        decode = new ArrayBlockingQueue<Slice>(2*threads + threads);
+        ordered = new ArrayBlockingQueue<Slice>(2*threads + 1);
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "osmt-bzip2-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                scan();
+            }
+        }, "osmt-bzip2-read");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * scan: the reader thread; cut the input at the block magics
+     */
+    private void scan() {
+        try {
+            try {
+                byte[] buf = new byte[2*READ_SIZE];
+                int limit = 0, scanned = 0;
+                long offset = 0;       //of buf[0]
+                long block = -1;       //bit of the current block's magic in buf
+                boolean eof = false;
+
+                while (!eof) {
+                    if (limit == buf.length) {
+                        //keep the current block only
+                        int keep = block < 0 ? Math.max(0, limit - 8) : (int)(block >>> 3);
+                        if (keep == 0) {
+                            buf = Arrays.copyOf(buf, buf.length*2);
+                        }
+                        else {
+                            System.arraycopy(buf, keep, buf, 0, limit - keep);
+                            limit -= keep;
+                            scanned -= keep;
+                            offset += keep;
+                            if (block >= 0) block -= (long)keep*8;
+                        }
+                    }
+                    int n = in.read(buf, limit, Math.min(READ_SIZE, buf.length - limit));
+                    if (n < 0) {
+                        eof = true;
+                    }
+                    else {
+                        limit += n;
+                    }
+
+                    //search whole 64-bit windows
+                    for (; scanned + 8 <= limit; scanned++) {
+                        long w = 0;
+                        for (int k = 0; k < 8; k++) w = (w << 8) | (buf[scanned + k] & 0xff);
+
+                        for (int s = 0; s < 8; s++) {
+                            if (((w >>> (16 - s)) & 0xffffffffffffL) == Bzip2Decoder.BLOCK_MAGIC) {
+                                long bit = (long)scanned*8 + s;
+
+                                if (block >= 0) {
+                                    dispatch(slice(buf, offset, block, bit, limit));
+                                }
+                                block = bit;
+                            }
+                        }
+                    }
+                }
+                if (block >= 0) {
+                    dispatch(slice(buf, offset, block, (long)limit*8, limit));
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                ordered.put(END);
+                for (int i = 0; i < workers.length; i++) {
+                    decode.put(END);
+                }
+            }
+        } catch (InterruptedException e) {
+            //the stream is being closed
+        }
+    }
+
+    /**
+     * slice: copy the data of a block, up to the start of the next one and
+     * a few bytes more so that it contains the next magic
+     */
+    private static Slice slice(byte[] buf, long offset, long block, long next, int limit) {
+        Slice slice = new Slice();
+        int from = (int)(block >>> 3);
+        int to = (int)Math.min(limit, (next >>> 3) + 8);
+
+        slice.data = Arrays.copyOfRange(buf, from, to);
+        slice.offset = offset + from;
+        slice.startBit = (int)(block & 7);
+        slice.length = (int)(next >>> 3) - from;
+        return slice;
+    }
+
+    private void dispatch(Slice slice) throws InterruptedException {
+        ordered.put(slice);
+        decode.put(slice);
+    }
+
+    /**
+     * work: a decoder thread
+     */
+    private void work() {
+        Bzip2Decoder decoder = new Bzip2Decoder();
+
+        try {
+            Slice slice;
+
+            while ((slice = decode.take()) != END) {
+                try {
+                    decoder.decode(slice.data, slice.startBit, slice.data.length);
+                    slice.out = Arrays.copyOf(decoder.out, decoder.outLength);
+                    slice.outLength = decoder.outLength;
+                    slice.endBit = slice.offset*8 + decoder.endBit;
+                    slice.done(null);
+                } catch (IOException e) {
+                    slice.done(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            //the stream is being closed
+        }
+    }
+
+    /**
+     * nextBlock: move to the next block in order
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    private boolean nextBlock() throws IOException {
+        try {
+            while (true) {
+                Slice slice = taken.isEmpty() ? ordered.take() : taken.poll();
+
+                if (slice == END) {
+                    ordered.put(END);
+                    if (error != null) throw error;
+                    return false;
+                }
+                //a false magic inside the last block
+                if (current != null && slice.start() < end) {
+                    continue;
+                }
+                slice.await();
+
+                if (slice.error != null) {
+                    decodeJoined(slice);
+                }
+                current = slice;
+                pos = 0;
+                end = slice.endBit;
+                if (slice.outLength > 0) return true;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    /**
+     * decodeJoined: decode a block that did not decode within its slice, by
+     * joining the following slices
+     * @param slice
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void decodeJoined(Slice slice) throws IOException, InterruptedException {
+        byte[] data = Arrays.copyOf(slice.data, slice.length);
+        IOException e = slice.error;
+
+        if (decoder == null) decoder = new Bzip2Decoder();
+
+        for (int i = 0; i < MAX_JOINED; i++) {
+            Slice following = ordered.take();
+            taken.add(following);
+
+            if (following == END) {
+                throw e;
+            }
+            int length = data.length;
+            data = Arrays.copyOf(data, length + following.data.length);
+            System.arraycopy(following.data, 0, data, length, following.data.length);
+
+            try {
+                decoder.decode(data, slice.startBit, data.length);
+                slice.out = Arrays.copyOf(decoder.out, decoder.outLength);
+                slice.outLength = decoder.outLength;
+                slice.endBit = slice.offset*8 + decoder.endBit;
+                slice.error = null;
+                return;
+            } catch (IOException e2) {
+                e = e2;
+            }
+            data = Arrays.copyOf(data, length + following.length);
+        }
+        throw e;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+
+        if (current == null || pos == current.outLength) {
+            if (!nextBlock()) return -1;
+        }
+        int n = Math.min(len, current.outLength - pos);
+        System.arraycopy(current.out, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        in.close();
+    }
+}
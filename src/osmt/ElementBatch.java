@@ -0,0 +1,148 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+/**
+ * A run of consecutive elements of the input, copied out of the XmlScanner
+ * buffer by the reader stage of the split pipeline. Parse workers then fill
+ * in the attributes Split needs, so the ordered stage only looks them up.
+ *
+ * For element e, data[lineStart[e], end[e]) is its line and
+ * data[start[e], end[e]) its tag; id[e] is the ID of a node or way and the
+ * ref of an nd or member, tn[e] the tile number of a node (see
+ * NodeToTileNumber.tileNumber).
+ */
+public class ElementBatch {
+    static final int MAX_ELEMENTS = 4096;
+    static final int MAX_BYTES = 1 << 18;
+
+    public byte[] data;
+    public int size, count;
+    public int[] kind, lineStart, start, end;
+    public long[] id, tn;
+    public String[] type, role;
+
+    private boolean parsed;
+    private Exception error;
+
+    public ElementBatch(int maxElements, int maxBytes) {
+        data = new byte[maxBytes];
+        kind = new int[maxElements];
+        lineStart = new int[maxElements];
+        start = new int[maxElements];
+        end = new int[maxElements];
+        id = new long[maxElements];
+        tn = new long[maxElements];
+        type = new String[maxElements];
+        role = new String[maxElements];
+    }
+
+    /**
+     * clear: empty the batch for reuse
+     */
+    synchronized void clear() {
+        size = 0;
+        count = 0;
+        parsed = false;
+        error = null;
+    }
+
+    /**
+     * add: copy the current element of a scanner
+     * @param xml
+     * @return false if the batch is full
+     */
+    boolean add(XmlScanner xml) {
+        return add(xml.kind, xml.buf, xml.lineStart, xml.end - xml.lineStart, xml.start - xml.lineStart);
+    }
+
+    /**
+     * add: copy the line of an element
+     * @param kind - XmlScanner.NODE etc.
+     * @param b
+     * @param off
+     * @param len
+     * @param indent - number of bytes in front of the tag
+     * @return false if the batch is full
+     */
+    boolean add(int kind, byte[] b, int off, int len, int indent) {
+        if (count == this.kind.length || (count > 0 && size + len > data.length)) {
+            return false;
+        }
+        //a single element longer than the batch
+        if (len > data.length) {
+            data = new byte[len];
+        }
+
+        System.arraycopy(b, off, data, size, len);
+        this.kind[count] = kind;
+        lineStart[count] = size;
+        start[count] = size + indent;
+        end[count] = size + len;
+        size += len;
+        count++;
+        return true;
+    }
+
+    /**
+     * parse: parse the attributes of all elements
+     * @param attr - the parse worker's Attributes
+     */
+    void parse(Attributes attr) {
+        try {
+            for (int e = 0; e < count; e++) {
+                switch (kind[e]) {
+                case XmlScanner.NODE:
+                    attr.parse(data, start[e], end[e]);
+                    id[e] = attr.id;
+                    tn[e] = NodeToTileNumber.tileNumber(attr.lat, attr.lon);
+                    break;
+                case XmlScanner.WAY:
+                    attr.parse(data, start[e], end[e]);
+                    id[e] = attr.id;
+                    break;
+                case XmlScanner.ND:
+                    attr.parse(data, start[e], end[e]);
+                    id[e] = attr.ref;
+                    break;
+                case XmlScanner.MEMBER:
+                    attr.parse(data, start[e], end[e]);
+                    id[e] = attr.ref;
+                    type[e] = attr.type;
+                    role[e] = attr.role();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        synchronized (this) {
+            parsed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * await: wait until the batch has been parsed
+     * @throws Exception - the error a parse worker ran into
+     * @throws InterruptedException
+     */
+    synchronized void await() throws Exception {
+        while (!parsed) {
+            wait();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reader and parse stages of the split pipeline. A reader thread scans the
+ * input into ElementBatches, parse worker threads parse the batches in
+ * parallel, and take() hands them out in input order once they are parsed.
+ *
+ * A fixed number of batches circulates between the stages (the caller hands
+ * them back with recycle()), which bounds the memory and makes the reader
+ * wait when the consumer falls behind.
+ */
+public class ElementReader implements ElementSource {
+    private static final ElementBatch END = new ElementBatch(0, 0);
+
+    private XmlScanner scanner;
+    private BlockingQueue<ElementBatch> free, parse, ordered;
+    private Thread reader;
+    private Thread[] workers;
+    private volatile Exception error;
+
+    /**
+     * Constructor: start the reader and parse threads
+     * @param scanner - the input, positioned before the first element to read
+     * @param threads - number of parse workers
+     */
+    public ElementReader(XmlScanner scanner, int threads) {
+        this.scanner = scanner;
+
+        int batches = 2*threads + 2;
+        free = new ArrayBlockingQueue<ElementBatch>(batches);
+        parse = new ArrayBlockingQueue<ElementBatch>(batches + threads);
+        ordered = new ArrayBlockingQueue<ElementBatch>(batches + 1);
+
+        for (int i = 0; i < batches; i++) {
+            free.add(new ElementBatch(ElementBatch.MAX_ELEMENTS, ElementBatch.MAX_BYTES));
+        }
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "osmt-parse-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "osmt-read");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * read: the reader stage
+     */
+    private void read() {
+        try {
+            try {
+                ElementBatch batch = free.take();
+                batch.clear();
+
+                while (scanner.next()) {
+                    if (!batch.add(scanner)) {
+                        dispatch(batch);
+                        batch = free.take();
+                        batch.clear();
+                        batch.add(scanner);
+                    }
+                }
+                dispatch(batch);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                ordered.put(END);
+                for (int i = 0; i < workers.length; i++) {
+                    parse.put(END);
+                }
+            }
+        } catch (InterruptedException e) {
+            //the pipeline is shutting down
+        }
+    }
+
+    private void dispatch(ElementBatch batch) throws InterruptedException {
+        ordered.put(batch);
+        parse.put(batch);
+    }
+
+    /**
+     * work: a parse worker
+     */
+    private void work() {
+        Attributes attr = new Attributes();
+
+        try {
+            ElementBatch batch;
+
+            while ((batch = parse.take()) != END) {
+                batch.parse(attr);
+            }
+        } catch (InterruptedException e) {
+            //the pipeline is shutting down
+        }
+    }
+
+    @Override
+    public ElementBatch take() throws Exception {
+        ElementBatch batch = ordered.take();
+
+        if (batch == END) {
+            if (error != null) throw error;
+            return null;
+        }
+        batch.await();
+        return batch;
+    }
+
+    @Override
+    public void recycle(ElementBatch batch) throws InterruptedException {
+        free.put(batch);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        scanner.close();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+
+/**
+ * Input of Split: parsed ElementBatches in input order, e.g. from OSM XML
+ * (ElementReader) or PBF (PbfReader).
+ */
+public interface ElementSource {
+    /**
+     * take: the next parsed batch in input order
+     * @return null at the end of the input
+     * @throws Exception - an error while reading or parsing
+     */
+    ElementBatch take() throws Exception;
+
+    /**
+     * recycle: hand a batch back after it has been processed
+     * @param batch
+     * @throws InterruptedException
+     */
+    void recycle(ElementBatch batch) throws InterruptedException;
+
+    /**
+     * close: stop the threads and close the input
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
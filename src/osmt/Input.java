@@ -0,0 +1,92 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An input file, decompressed on the fly if it is gzip or bzip2 compressed.
+ * The compression is detected from the magic bytes, not the file name.
+ *
+ * The stream supports mark/reset, so that the format of the content can be
+ * checked without opening the file again.
+ */
+public class Input {
+    public static final int PLAIN = 0;
+    public static final int GZIP = 1;
+    public static final int BZIP2 = 2;
+
+    public InputStream stream;
+    public int compression;
+
+    /**
+     * Constructor: open a file
+     * @param fileName
+     * @param threads - number of threads for bzip2 decompression
+     * @throws IOException
+     */
+    public Input(String fileName, int threads) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+
+        compression = compression(in);
+
+        if (compression == GZIP) {
+            in = new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16);
+        }
+        else if (compression == BZIP2) {
+            in = new BufferedInputStream(new Bzip2InputStream(in, threads), 1 << 16);
+        }
+        stream = in;
+    }
+
+    /**
+     * compression: detect the compression of a stream from its first bytes
+     * @param in - a stream that supports mark/reset
+     * @return PLAIN, GZIP or BZIP2
+     * @throws IOException
+     */
+    static int compression(InputStream in) throws IOException {
+        byte[] b = peek(in, 4);
+
+        if (b.length >= 2 && (b[0] & 0xff) == 0x1f && (b[1] & 0xff) == 0x8b) {
+            return GZIP;
+        }
+        if (b.length == 4 && b[0] == 'B' && b[1] == 'Z' && b[2] == 'h' && b[3] >= '1' && b[3] <= '9') {
+            return BZIP2;
+        }
+        return PLAIN;
+    }
+
+    /**
+     * peek: read the first bytes of a stream without consuming them
+     * @param in - a stream that supports mark/reset
+     * @param n
+     * @return up to n bytes
+     * @throws IOException
+     */
+    static byte[] peek(InputStream in, int n) throws IOException {
+        byte[] b = new byte[n];
+        int count = 0, r;
+
+        in.mark(n);
+        while (count < n && (r = in.read(b, count, n - count)) > 0) count += r;
+        in.reset();
+
+        return count == n ? b : Arrays.copyOf(b, count);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of longs. The values are a[head] to a[n - 1]; removing from
+ * the front moves head, so neither end is ever shifted on removal.
+ */
+public class LongList {
+    long[] a;
+    int head, n;
+
+    public LongList() {
+        this(256);
+    }
+
+    public LongList(int capacity) {
+        a = new long[capacity];
+    }
+
+    void add(long v) {
+        if (n == a.length) a = Arrays.copyOf(a, Math.max(n*2, 16));
+        a[n++] = v;
+    }
+
+    /**
+     * addFirst: insert a value at the front, into the space left by
+     * removeFirst() if there is any
+     * @param v
+     */
+    void addFirst(long v) {
+        if (head == 0) {
+            int shift = Math.max(a.length/2, 8);
+            long[] b = new long[a.length + shift];
+            System.arraycopy(a, 0, b, shift, n);
+            a = b;
+            head = shift;
+            n += shift;
+        }
+        a[--head] = v;
+    }
+
+    long get(int i) {
+        return a[head + i];
+    }
+
+    long first() {
+        return a[head];
+    }
+
+    long last() {
+        return n > head ? a[n - 1] : 0;
+    }
+
+    int size() {
+        return n - head;
+    }
+
+    boolean isEmpty() {
+        return n == head;
+    }
+
+    void removeFirst() {
+        head++;
+    }
+
+    void removeLast() {
+        n--;
+    }
+
+    void clear() {
+        head = n = 0;
+    }
+
+    void reverse() {
+        for (int i = head, j = n - 1; i < j; i++, j--) {
+            long v = a[i];
+            a[i] = a[j];
+            a[j] = v;
+        }
+    }
+}
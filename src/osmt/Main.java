@@ -61,12 +61,21 @@ public class Main {
         System.out.println("Usage: osmt --split [OPTIONS] SOURCE");
         System.out.println("or:    osmt --merge --of=DEST [OPTIONS] SOURCE");
         System.out.println("Split SOURCE file, or merge SOURCE files to DEST file");
+        System.out.println("SOURCE may be OSM XML or PBF, also gzip or bzip2 compressed, when splitting");
+        System.out.println("SOURCE tiles may be PBF, gzip or bzip2 compressed when merging");
         System.out.println("");
         System.out.println("Options (only in splitting mode):");
         System.out.println("--output-dir=DIR      write tiles to DIR (defaults to working directory)");
-        System.out.println("--index-file=FILE     write index file (~6 GB) to FILE (defaults to \"node2tn\" in working directory)");
+        System.out.println("--index-file=FILE     write sparse index file to FILE (defaults to \"node2tn\" in working directory)");
         System.out.println("--tile-size=SIZE      create tiles of SIZE degrees in width and height (defaults to 1)");
         System.out.println("--slim                save temporary nodes on disk, not in RAM");
+        System.out.println("--index-memory=MB     keep the node index in RAM while node IDs fit in MB megabytes (defaults to 1/4 of the Java heap, 0 = always use index file)");
+        System.out.println("--index-offheap       keep the in-memory node index outside the Java heap");
+        System.out.println("--write-buffer=MB     buffer up to MB megabytes of tile output in RAM (defaults to 1/8 of the Java heap)");
+        System.out.println("--max-open-files=N    keep at most N tile files open at a time (defaults to 256)");
+        System.out.println("--threads=N           use N threads to parse the input and write tiles (defaults to the number of CPUs)");
+        System.out.println("--gzip                write gzip compressed tiles (N.osm.gz)");
+        System.out.println("--pbf                 write PBF tiles (N.osm.pbf)");
         System.out.println("");
         System.out.println("Other options:");
         System.out.println("--help                print help");
@@ -87,6 +96,13 @@ public class Main {
         float tilesize = 1.0f;
         boolean merge = false;
         boolean slim = false;
+        long indexMemory = Runtime.getRuntime().maxMemory() / 4;
+        boolean indexOffHeap = false;
+        long writeBuffer = Runtime.getRuntime().maxMemory() / 8;
+        int maxOpenFiles = 256;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean gzip = false;
+        boolean pbf = false;
         
         Main main = new Main(args);
         
@@ -160,6 +176,66 @@ public class Main {
                 slim = true;
                 main.params.remove("slim");
             }
+            
+            if (main.params.containsKey("index-memory") && main.params.get("index-memory") != "") {
+                indexMemory = Long.parseLong(main.params.get("index-memory")) * 1024 * 1024;
+                
+                if (indexMemory < 0) {
+                    System.err.println("Error: index memory must be 0 or more");
+                    System.exit(1);
+                }
+                main.params.remove("index-memory");
+            }
+            
+            if (main.params.containsKey("index-offheap")) {
+                indexOffHeap = true;
+                main.params.remove("index-offheap");
+            }
+            
+            if (main.params.containsKey("write-buffer") && main.params.get("write-buffer") != "") {
+                writeBuffer = Long.parseLong(main.params.get("write-buffer")) * 1024 * 1024;
+                
+                if (writeBuffer < 0) {
+                    System.err.println("Error: write buffer must be 0 or more");
+                    System.exit(1);
+                }
+                main.params.remove("write-buffer");
+            }
+            
+            if (main.params.containsKey("max-open-files") && main.params.get("max-open-files") != "") {
+                maxOpenFiles = Integer.parseInt(main.params.get("max-open-files"));
+                
+                if (maxOpenFiles < 1) {
+                    System.err.println("Error: max-open-files must be 1 or more");
+                    System.exit(1);
+                }
+                main.params.remove("max-open-files");
+            }
+            
+            if (main.params.containsKey("threads") && main.params.get("threads") != "") {
+                threads = Integer.parseInt(main.params.get("threads"));
+                
+                if (threads < 1) {
+                    System.err.println("Error: threads must be 1 or more");
+                    System.exit(1);
+                }
+                main.params.remove("threads");
+            }
+            
+            if (main.params.containsKey("gzip")) {
+                gzip = true;
+                main.params.remove("gzip");
+            }
+            
+            if (main.params.containsKey("pbf")) {
+                pbf = true;
+                main.params.remove("pbf");
+                
+                if (gzip) {
+                    System.err.println("Error: PBF tiles are compressed already, --gzip and --pbf cannot be combined");
+                    System.exit(1);
+                }
+            }
         }
         
         //input files
@@ -202,7 +278,7 @@ public class Main {
             }
         }
         else {
-            Split splt = new Split(inputFiles.get(0), node2tnFile, outputDir, tilesize, slim);
+            Split splt = new Split(inputFiles.get(0), node2tnFile, outputDir, tilesize, slim, indexMemory, indexOffHeap, writeBuffer, maxOpenFiles, threads, gzip, pbf);
             
             NodeToTileNumber.tilesizeLat = tilesize;
             NodeToTileNumber.tilesizeLon = tilesize;
@@ -0,0 +1,66 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+
+/**
+ * Node index kept in a sparse, memory-mapped PagedIndex. Reads and writes are
+ * plain memory accesses, so there is no syscall per node, and only the pages
+ * of the ID space that actually hold nodes are allocated in the index file.
+ * Tile numbers are stored with the smallest width that fits the tile size
+ * (see NodeToTileNumber.indexWidth), i.e. 2 bytes for 1 degree tiles.
+ */
+public class MappedNodeToTileNumber extends NodeToTileNumber {
+    private PagedIndex index;
+    private long invalid;    //stored value of tile number -1
+
+    public MappedNodeToTileNumber(String node2tnFile, float tilesize) throws IOException {
+        super(tilesize);
+        index = new PagedIndex(node2tnFile, indexWidth());
+        invalid = index.maxValue();
+    }
+
+    /**
+     * setTn - set tile number explicitly
+     * @param nodeId
+     * @param tn
+     * @throws IOException
+     */
+    @Override
+    public void setTn(long nodeId, long tn) throws IOException {
+        index.set(nodeId, tn == -1 ? invalid : tn);
+    }
+
+    /**
+     * getTn - get tile number, 0 if the node has not been indexed
+     * @param nodeId
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long getTn(long nodeId) throws IOException {
+        long tn = index.get(nodeId);
+        return tn == invalid ? -1 : tn;
+    }
+
+    /**
+     * close - release the index file
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        index.close();
+    }
+}
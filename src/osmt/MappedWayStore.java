@@ -0,0 +1,160 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * WayStore in memory-mapped files. The list of a way is appended to a data
+ * file as a varint count followed by the zigzag varint deltas between
+ * consecutive values, which is 1-3 bytes per value for sorted tile numbers or
+ * the node IDs of typical ways. A
+ * PagedIndex maps the way ID to the position of its list (plus one, so 0
+ * means "not stored").
+ *
+ * Both files are temporary and deleted by close().
+ */
+public class MappedWayStore implements WayStore {
+    static final int SEGMENT_BITS = 26;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private String dataFileName, indexFileName;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private long size, readPos;
+    private PagedIndex index;
+
+    /**
+     * Constructor
+     * @param fileName - data file, the index goes to fileName + ".idx"
+     * @throws IOException
+     */
+    public MappedWayStore(String fileName) throws IOException {
+        dataFileName = fileName;
+        indexFileName = fileName + ".idx";
+        file = new RandomAccessFile(dataFileName, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        segments = new MappedByteBuffer[16];
+        size = 0;
+        index = new PagedIndex(indexFileName, 8);
+    }
+
+    @Override
+    public void put(long wayId, long[] values, int count) throws IOException {
+        index.set(wayId, size + 1);
+        writeVarint(count);
+
+        long previous = 0;
+
+        for (int i = 0; i < count; i++) {
+            long delta = values[i] - previous;
+            writeVarint((delta << 1) ^ (delta >> 63));
+            previous = values[i];
+        }
+    }
+
+    @Override
+    public long[] get(long wayId) throws IOException {
+        long pos = index.get(wayId) - 1;
+
+        if (pos < 0) return null;
+
+        readPos = pos;
+        long[] values = new long[(int)readVarint()];
+        long previous = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            long v = readVarint();
+            previous += (v >>> 1) ^ -(v & 1);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    /**
+     * readVarint: read a value written by writeVarint at readPos
+     * @return
+     * @throws IOException
+     */
+    private long readVarint() throws IOException {
+        long v = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = segment((int)(readPos >>> SEGMENT_BITS)).get((int)(readPos & SEGMENT_MASK));
+            readPos++;
+            v |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        return v;
+    }
+
+    /**
+     * writeVarint: append an unsigned value in 7-bit groups, low group first
+     * @param v
+     * @throws IOException
+     */
+    private void writeVarint(long v) throws IOException {
+        while (true) {
+            byte b = (byte)(v & 0x7F);
+            v >>>= 7;
+            if (v != 0) b |= 0x80;
+
+            segment((int)(size >>> SEGMENT_BITS)).put((int)(size & SEGMENT_MASK), b);
+            size++;
+
+            if (v == 0) break;
+        }
+    }
+
+    /**
+     * segment - get a mapped segment, mapping it on first use
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private MappedByteBuffer segment(int index) throws IOException {
+        if (index >= segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(index + 1, segments.length*2));
+        }
+
+        MappedByteBuffer segment = segments[index];
+
+        if (segment == null) {
+            //mapping beyond the end grows the file
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, (long)index << SEGMENT_BITS, SEGMENT_SIZE);
+            segments[index] = segment;
+        }
+        return segment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(segments, null);
+        channel.close();
+        file.close();
+        index.close();
+        new File(dataFileName).delete();
+        new File(indexFileName).delete();
+    }
+}
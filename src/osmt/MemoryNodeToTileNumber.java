@@ -0,0 +1,174 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Node index kept in memory, for inputs whose node ID range fits a memory
+ * budget. Tile numbers are stored in chunks of primitive memory, on the heap
+ * or off-heap (direct buffers), using the same width as the mapped index.
+ * Chunks are allocated the first time a node in them is written.
+ *
+ * If a node ID beyond the budget shows up, the index moves to a
+ * MappedNodeToTileNumber in the given index file and continues there.
+ */
+public class MemoryNodeToTileNumber extends NodeToTileNumber {
+    static final int CHUNK_BITS = 20;
+    static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private String node2tnFile;
+    private boolean offHeap;
+    private int width;
+    private long invalid;   //stored value of tile number -1
+    private long capacity;  //number of node IDs that fit the budget
+    private ByteBuffer[] chunks;
+    private NodeToTileNumber spill;
+
+    /**
+     * Constructor
+     * @param node2tnFile - index file used if the budget is exceeded
+     * @param tilesize
+     * @param budget - memory budget in bytes
+     * @param offHeap - allocate outside the Java heap
+     */
+    public MemoryNodeToTileNumber(String node2tnFile, float tilesize, long budget, boolean offHeap) {
+        super(tilesize);
+        this.node2tnFile = node2tnFile;
+        this.offHeap = offHeap;
+        width = indexWidth();
+        invalid = width == 8 ? -1L : (1L << (width*8)) - 1;
+        capacity = budget / width;
+        chunks = new ByteBuffer[(int)Math.min(Integer.MAX_VALUE - 1, (capacity >>> CHUNK_BITS) + 1)];
+    }
+
+    /**
+     * setTn - set tile number explicitly
+     * @param nodeId
+     * @param tn
+     * @throws IOException
+     */
+    @Override
+    public void setTn(long nodeId, long tn) throws IOException {
+        if (spill == null && (nodeId < 0 || nodeId >= capacity)) {
+            spill();
+        }
+        if (spill != null) {
+            spill.setTn(nodeId, tn);
+            return;
+        }
+
+        int c = (int)(nodeId >>> CHUNK_BITS);
+        ByteBuffer chunk = chunks[c];
+
+        if (chunk == null) {
+            int size = (int)(CHUNK_MASK + 1) * width;
+            chunk = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            chunks[c] = chunk;
+        }
+
+        int offset = (int)(nodeId & CHUNK_MASK) * width;
+        long value = tn == -1 ? invalid : tn;
+
+        switch (width) {
+        case 2:
+            chunk.putShort(offset, (short)value);
+            break;
+        case 4:
+            chunk.putInt(offset, (int)value);
+            break;
+        default:
+            chunk.putLong(offset, value);
+        }
+    }
+
+    /**
+     * getTn - get tile number, 0 if the node has not been indexed
+     * @param nodeId
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long getTn(long nodeId) throws IOException {
+        if (spill != null) {
+            return spill.getTn(nodeId);
+        }
+        if (nodeId < 0 || nodeId >= capacity) {
+            return 0;
+        }
+
+        ByteBuffer chunk = chunks[(int)(nodeId >>> CHUNK_BITS)];
+
+        if (chunk == null) {
+            return 0;
+        }
+
+        int offset = (int)(nodeId & CHUNK_MASK) * width;
+        long value;
+
+        switch (width) {
+        case 2:
+            value = chunk.getShort(offset) & 0xFFFFL;
+            break;
+        case 4:
+            value = chunk.getInt(offset) & 0xFFFFFFFFL;
+            break;
+        default:
+            value = chunk.getLong(offset);
+        }
+        return value == invalid ? -1 : value;
+    }
+
+    /**
+     * spill - move all entries to a mapped index file
+     * @throws IOException
+     */
+    private void spill() throws IOException {
+        System.out.println("node index exceeds memory budget, moving it to " + node2tnFile);
+
+        NodeToTileNumber mapped = new MappedNodeToTileNumber(node2tnFile, tilesizeLat);
+
+        for (int c = 0; c < chunks.length; c++) {
+            if (chunks[c] == null) continue;
+
+            long first = (long)c << CHUNK_BITS;
+
+            for (long i = 0; i <= CHUNK_MASK; i++) {
+                long tn = getTn(first + i);
+                if (tn != 0) {
+                    mapped.setTn(first + i, tn);
+                }
+            }
+            chunks[c] = null;
+        }
+        chunks = null;
+        spill = mapped;
+    }
+
+    /**
+     * close - release the index
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+        else {
+            Arrays.fill(chunks, null);
+        }
+    }
+}
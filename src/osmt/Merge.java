@@ -15,24 +15,37 @@
 
 package osmt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.PriorityQueue;
 
 public class Merge {
+    //by element ID, then by position in the input files
+    static final Comparator<TileReader> ELEMENT_ORDER = new Comparator<TileReader>() {
+        public int compare(TileReader a, TileReader b) {
+            return a.id != b.id ? Long.compare(a.id, b.id) : Integer.compare(a.index, b.index);
+        }
+    };
+    
+    static final byte[] ND = "       <nd ref=\"".getBytes(StandardCharsets.UTF_8);
+    static final byte[] ND_END = "\"/>\n".getBytes(StandardCharsets.UTF_8);
+    
     ArrayList<TileReader> inputTiles;
     String outputFile;
     
-    BufferedReader br;
-    Writer fh, fhTmp;
+    XmlScanner br;
+    OutputStream fh;
     
     /**
      * Constructor
@@ -58,7 +71,7 @@ public class Merge {
         this.outputFile = outputFile;
         
         try {
-            fh = new FileWriter(outputFile);
+            fh = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 20);
         } catch (IOException e) {
             System.err.println("Error: Cannot open file for writing: " + outputFile);
         }
@@ -69,556 +82,700 @@ public class Merge {
      * @throws Exception
      */
     void merge() throws Exception {
-        //TreeMaps id -> tile number
-        TreeMap<Long, TileReader> nodesMap = new TreeMap<Long, TileReader>();
-        TreeMap<Long, TileReader> waysMap = new TreeMap<Long, TileReader>();
-        
-        HashMap<String, String> attr;
+        Attributes attr = new Attributes();
         
         TileReader tr;
-        String line;
-        long nodeId = 0L, wayId = 0L, newId = 1000000000L;
-        boolean parse, splitWay = false, ndsWritten = false, segmentSaved = false;
+        long wayId = 0L, newId = 1000000000L;
         
         float minLat = 90F, minLon = 180F, maxLat = -90F, maxLon = -180F;
         
-        WaySegment segment = new WaySegment();
-
-        TreeMap<Long, LinkedList<WaySegment>> segments = new TreeMap<Long, LinkedList<WaySegment>>();
-        TreeMap<Long, ArrayList<WaySegment>> mergedWays = new TreeMap<Long, ArrayList<WaySegment>>();
-        
         
         //write opening tags
-        fh.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        fh.write("<osm version=\"0.6\" generator=\"osmt\">\n");
+        write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        write("<osm version=\"0.6\" generator=\"osmt\">\n");
         
         
-        //1st pass: parse nodes, save them to TreeMap
+        //read the bounds of all tiles, up to their first element
         
-        for (TileReader t : inputTiles) {
-            br = t.inputReader;
-            
-            System.out.println("1st pass tile " + t.tn + " ...");
+        PriorityQueue<TileReader> queue = new PriorityQueue<TileReader>(Math.max(1, inputTiles.size()), ELEMENT_ORDER);
+        
+        for (int i = 0; i < inputTiles.size(); i++) {
+            TileReader t = inputTiles.get(i);
+            t.index = i;
+            br = t.scanner;
             
-            //parse XML
-            while ((line = br.readLine()) != null) {
-                if (line.contains("<bounds ")) {
-                    attr = Split.parseAttr(line);
-                    float tileMinLat = Float.valueOf(attr.get("minlat"));
-                    float tileMinLon = Float.valueOf(attr.get("minlon"));
-                    float tileMaxLat = Float.valueOf(attr.get("maxlat"));
-                    float tileMaxLon = Float.valueOf(attr.get("maxlon"));
+            while (br.next()) {
+                if (br.kind == XmlScanner.BOUNDS) {
+                    attr.parse(br.buf, br.start, br.end);
                     
-                    minLat = Math.min(minLat, tileMinLat);
-                    minLon = Math.min(minLon, tileMinLon);
-                    maxLat = Math.max(maxLat, tileMaxLat);
-                    maxLon = Math.max(maxLon, tileMaxLon);
-                }
-                else if (line.contains("<node ")) {
-                    attr = Split.parseAttr(line);
-                    nodeId = Long.valueOf(attr.get("id"));
-                    nodesMap.put(nodeId, t);
+                    minLat = Math.min(minLat, attr.minlat);
+                    minLon = Math.min(minLon, attr.minlon);
+                    maxLat = Math.max(maxLat, attr.maxlat);
+                    maxLon = Math.max(maxLon, attr.maxlon);
                 }
-                else if (line.contains("<way ") || line.contains("<relation ") || line.contains("</osm>")) {
+                else if (isTopLevel(br)) {
+                    t.pending = true;
                     break;
                 }
             }
+            if (t.pending && br.kind == XmlScanner.NODE) {
+                attr.parse(br.buf, br.start, br.end);
+                t.id = attr.id;
+                queue.add(t);
+            }
         }
         
-        System.out.println(": found " + nodesMap.size() + " node objects");
-        
-        fh.write("<bounds minlat=\"" + minLat + "\" minlon=\"" + minLon + "\" maxlat=\"" + maxLat + "\" maxlon=\"" + maxLon + "\"/>\n");
+        write("<bounds minlat=\"" + minLat + "\" minlon=\"" + minLon + "\" maxlat=\"" + maxLat + "\" maxlon=\"" + maxLon + "\"/>\n");
         
         
-        //write nodes to output file
+        //write nodes to output file: every tile has its nodes in ascending
+        //ID order, so merge them, a node at a time
         
-        newReaders(inputTiles);
         System.out.println("writing nodes ...");
         
         int writeCount = 0;
-        String pL;
         
-        for (Map.Entry<Long, TileReader> entry : nodesMap.entrySet()) {
-            nodeId = entry.getKey();
-            tr = entry.getValue();
+        while (!queue.isEmpty()) {
+            tr = queue.poll();
             
-            parse = false;
+            //a copy of a node in another tile: the one in the last tile is written
+            TileReader next = queue.peek();
+            boolean copy = next != null && next.id == tr.id;
             
-            br = tr.inputReader;
-            pL = tr.previousLine;   //tr.previousLine is the line read just before the loop broke the last time
+            if (!copy) writeCount++;
             
-            if (pL.contains("<node id=\"" + nodeId + "\"")) {
-                fh.write(pL + "\n");
-                parse = true;
-                writeCount++;
+            if (copyElement(tr, !copy) && tr.scanner.kind == XmlScanner.NODE) {
+                attr.parse(tr.scanner.buf, tr.scanner.start, tr.scanner.end);
+                tr.id = attr.id;
+                queue.add(tr);
             }
-            
-            while ((line = br.readLine()) != null) {
-                if (parse) {
-                    if (line.contains("<node ") || line.contains("<way ") || line.contains("<relation ") || line.contains("</osm>")) {
-                        tr.previousLine = line;
-                        break;
-                    }
-                    else {
-                        fh.write(line + "\n");
-                    }
-                }
-                else if (line.contains("<node id=\"" + nodeId + "\"")) {
-                    fh.write(line + "\n");
-                    
-                    parse = true;
-                    writeCount++;
-                }
-            }
-        } //end for (Map.Entry<Long, TileReader> entry : nodesMap.entrySet())
+        }
         
         System.out.println(": wrote " + writeCount + " nodes to output file");
         
         
-        //2nd pass: parse ways, identify split ways, save them to TreeMap
-        
-        newReaders(inputTiles);
+        //write ways to output file: the ways are merged like the nodes; all
+        //copies of a way come up together, so the segments of a split way
+        //are complete once its last copy has been read
         
-        boolean tnFound = false;
+        System.out.println("writing ways ...");
         
         for (TileReader t : inputTiles) {
-            br = t.inputReader;
-            
-            splitWay = false;
-            
-            System.out.println("2nd pass tile " + t.tn + " ...");
-            
-            //parse XML
-            while ((line = br.readLine()) != null) {
-                if (line.contains("<way ")) {
-                    splitWay = parse = segmentSaved = false;
-                    segment = new WaySegment();
+            if (t.pending && t.scanner.kind == XmlScanner.WAY) {
+                attr.parse(t.scanner.buf, t.scanner.start, t.scanner.end);
+                t.id = attr.id;
+                queue.add(t);
+            }
+        }
+        
+        writeCount = 0;
+        int splitCount = 0;
+        ElementLines lines = new ElementLines();
+        
+        //the further parts of split ways are written after all ways
+        File extraFile = File.createTempFile("osmt-ways", ".osm", new File(outputFile).getAbsoluteFile().getParentFile());
+        OutputStream extraWays = new BufferedOutputStream(new FileOutputStream(extraFile), 1 << 16);
+        
+        try {
+            while (!queue.isEmpty()) {
+                wayId = queue.peek().id;
+                ArrayList<WaySegment> segments = new ArrayList<WaySegment>();
+                
+                //read all copies; the lines of the one in the last tile are written
+                while (!queue.isEmpty() && queue.peek().id == wayId) {
+                    tr = queue.poll();
                     
-                    attr = Split.parseAttr(line);
-                    wayId = Long.valueOf(attr.get("id"));
+                    WaySegment segment = new WaySegment();
+                    lines.clear();
                     
-                    waysMap.put(wayId, t);
+                    if (readWay(tr, attr, segment, lines)) {
+                        segment.tn = tr.tn;
+                        segments.add(segment);
+                    }
+                    if (tr.pending && tr.scanner.kind == XmlScanner.WAY) {
+                        attr.parse(tr.scanner.buf, tr.scanner.start, tr.scanner.end);
+                        tr.id = attr.id;
+                        queue.add(tr);
+                    }
                 }
-                else if (line.contains("<nd ")) {
-                    attr = Split.parseAttr(line);
-                    segment.refs.add(Long.valueOf(attr.get("ref")));
-                    
-                    //tn attribute?
-                    tnFound = attr.containsKey("tn");
-                    segment.refTn.add(tnFound ? Long.parseLong(attr.get("tn")) : 0);
-                    
-                    if (tnFound) splitWay = true;
+                writeCount++;
+                
+                if (segments.isEmpty()) {
+                    writeWay(fh, lines, null, 0);
+                    continue;
                 }
-                else if ((line.contains("<tag ") || line.contains("</way>")) && splitWay && !segmentSaved) {
-                    if (segment.refs.size() > 0) {
-                        if (!segments.containsKey(wayId)) {
-                            segments.put(wayId, new LinkedList<WaySegment>());
-                        }
-                        segment.tn = t.tn;
-                        segments.get(wayId).add(new WaySegment(segment));
-                        
-                        segmentSaved = true;
-                    }
+                
+                //merge split way
+                ArrayList<WaySegment> mergedWay = mergeSegments(segments, wayId == 0);  //insert way ID to debug
+                splitCount++;
+                
+                //first instance keeps original ID, others get incremental IDs
+                writeWay(fh, lines, mergedWay.get(0), 0);
+                
+                for (int i = 1; i < mergedWay.size(); i++) {
+                    writeWay(extraWays, lines, mergedWay.get(i), ++newId);
                 }
-                else if (line.contains("<relation ") || line.contains("</osm>")) {
-                    break;
+            }
+            extraWays.close();
+            
+            //append the further parts
+            InputStream in = new FileInputStream(extraFile);
+            try {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                
+                while ((n = in.read(buffer)) > 0) {
+                    fh.write(buffer, 0, n);
                 }
-            } //end while ((line = br.readLine()) != null)
-        } //end for (TileReader tr : inputTiles)
+            } finally {
+                in.close();
+            }
+        } finally {
+            extraWays.close();
+            if (!extraFile.delete()) {
+                System.err.println("error deleting file: " + extraFile);
+            }
+        }
         
-        System.out.println(": found " + waysMap.size() + " ways (" + segments.size() + " split ways)");
+        System.out.println(": wrote " + writeCount + " ways to output file (merged " + splitCount + " split ways)");
         
         
-        //merge split ways
+        //write relations to output file: each tile has the members in it,
+        //so the member lists of all copies are united
         
-        System.out.println("merging ways ...");
+        System.out.println("writing relations ...");
         
-        for (long id : segments.keySet()) {
-//          System.out.println("merging way " + id );
-            mergedWays.put(id, mergeSegments(segments.get(id), id == 0));   //insert way ID to debug
-//          System.out.println(mergedWays.get(id).size());
+        for (TileReader t : inputTiles) {
+            if (t.pending && t.scanner.kind == XmlScanner.RELATION) {
+                attr.parse(t.scanner.buf, t.scanner.start, t.scanner.end);
+                t.id = attr.id;
+                queue.add(t);
+            }
         }
         
-        System.out.println(": merged " + mergedWays.size() + " ways");
-        
-        
-        //write ways to output file
-        
-        System.out.println("writing ways ...");
-        
-        newReaders(inputTiles);
-
         writeCount = 0;
-        ArrayList<String> extraWays = new ArrayList<String>();
+        splitCount = 0;
+        RelationMembers members = new RelationMembers();
         
-        for (Map.Entry<Long, TileReader> entry : waysMap.entrySet()) {
-            wayId = entry.getKey();
-            tr = entry.getValue();
+        while (!queue.isEmpty()) {
+            long relationId = queue.peek().id;
+            int copies = 0;
             
-            parse = splitWay = ndsWritten = false;
-            String[] wayString = new String[mergedWays.containsKey(wayId) ? mergedWays.get(wayId).size() : 1];
+            members.clear();
             
-            br = tr.inputReader;
-            pL = tr.previousLine;   //tr.previousLine is the line read just before the loop broke the last time
-            
-            if (pL.contains("<way id=\"" + wayId + "\"")) {
-                for (int w = 0; w < wayString.length; w++) {
-                    wayString[w] = pL + "\n";
-                }
+            //read all copies; the lines of the one in the last tile are written
+            while (!queue.isEmpty() && queue.peek().id == relationId) {
+                tr = queue.poll();
                 
-                if (mergedWays.containsKey(wayId)) {
-                    splitWay = true;
+                lines.clear();
+                readRelation(tr, attr, lines, members, ++copies);
+                
+                if (tr.pending && tr.scanner.kind == XmlScanner.RELATION) {
+                    attr.parse(tr.scanner.buf, tr.scanner.start, tr.scanner.end);
+                    tr.id = attr.id;
+                    queue.add(tr);
                 }
-                parse = true;
-                writeCount++;
             }
-
-            //parse
-            while ((line = br.readLine()) != null) {
-                if (parse) {
-                    if (line.contains("<way ") || line.contains("<relation ") || line.contains("</osm>")) {
-                        tr.previousLine = line;
-                        break;
-                    }
-                    else if (line.contains("<nd ")) {
-                        if (splitWay) {
-                            if (!ndsWritten) {
-                                for (int i = 0; i < mergedWays.get(wayId).size(); i++) {
-                                    //first instance keeps original ID, others get incremental negative IDs
-                                    if (i > 0) {
-                                        int idIndex1 = wayString[i].indexOf("id=\"") + 4;
-                                        int idIndex2 = wayString[i].indexOf("\"", idIndex1);
-                                        wayString[i] = wayString[i].substring(0, idIndex1) + ++newId + wayString[i].substring(idIndex2);
-                                    }
-                                    for (Long r : mergedWays.get(wayId).get(i).refs) {
-                                        wayString[i] += "       <nd ref=\"" + r + "\"/>\n";
-                                    }
-                                }
-                                ndsWritten = true;
-                            }
-                        }
-                        else {
-                            for (int w = 0; w < wayString.length; w++) {
-                                wayString[w] += line + "\n";
-                            }
-                        }
-                    }
-                    else {
-                        for (int w = 0; w < wayString.length; w++) {
-                            wayString[w] += line + "\n";
-                        }
-                    }
-                }
-                else if (line.contains("<way id=\"" + wayId + "\"")) {
-                    for (int w = 0; w < wayString.length; w++) {
-                        wayString[w] = line + "\n";
-                    }
-                    
-                    if (mergedWays.containsKey(wayId)) {
-                        splitWay = true;
-                    }
-                    parse = true;
-                    writeCount++;
-                }
-            } //end while ((line = br.readLine()) != null)
+            writeRelation(fh, lines, members);
             
-            fh.write(wayString[0]);
+            writeCount++;
+            if (copies > 1) splitCount++;
+        }
+        
+        System.out.println(": wrote " + writeCount + " relations to output file (merged " + splitCount + " split relations)");
+
+        write("</osm>\n");
+        fh.close();
+    }
+    
+    /**
+     * readWay: read the current way of a reader up to the next way,
+     * relation or the end of the tile
+     * @param tr
+     * @param attr
+     * @param segment - gets the refs of the <nd>s and their tile numbers
+     * @param lines - gets the lines of the way
+     * @return true if it is a segment of a split way, i.e. has remote nodes
+     * @throws IOException
+     */
+    boolean readWay(TileReader tr, Attributes attr, WaySegment segment, ElementLines lines) throws IOException {
+        XmlScanner scanner = tr.scanner;
+        boolean splitWay = false;
+        
+        lines.add(scanner, false);
+        tr.pending = false;
+        
+        while (scanner.next()) {
+            if (isTopLevel(scanner)) {
+                tr.pending = true;
+                break;
+            }
+            if (scanner.kind == XmlScanner.ND) {
+                attr.parse(scanner.buf, scanner.start, scanner.end);
+                segment.refs.add(attr.ref);
+                segment.refTn.add(attr.hasTn ? attr.tn : 0);
+                
+                if (attr.hasTn) splitWay = true;
+            }
+            lines.add(scanner, scanner.kind == XmlScanner.ND);
+        }
+        return splitWay && !segment.refs.isEmpty();
+    }
+    
+    /**
+     * writeWay: write a way
+     * @param out
+     * @param lines - of the way, see readWay()
+     * @param merged - replaces the <nd>s, null to keep them
+     * @param newId - replaces the ID if not 0
+     * @throws IOException
+     */
+    static void writeWay(OutputStream out, ElementLines lines, WaySegment merged, long newId) throws IOException {
+        byte[] b = lines.data;
+        boolean ndsWritten = false;
+        
+        for (int i = 0; i < lines.count; i++) {
+            int start = lines.start[i], end = lines.end[i];
             
-            if (wayString.length > 1) {
-                for (int w = 1; w < wayString.length; w++) {
-                    extraWays.add(wayString[w]);
+            if (i == 0 && newId != 0) {
+                //replace the value of the id attribute
+                int id = start;
+                while (id < end - 4 && !Attributes.match(b, id, id + 4, "id=\"")) id++;
+                id += 4;
+                int idEnd = id;
+                while (idEnd < end && b[idEnd] != '"') idEnd++;
+                
+                out.write(b, start, id - start);
+                Tile.write(out, Long.toString(newId));
+                start = idEnd;
+            }
+            if (merged != null && lines.children.get(i)) {
+                if (!ndsWritten) {
+                    for (int j = 0; j < merged.refs.size(); j++) {
+                        out.write(ND);
+                        Tile.write(out, Long.toString(merged.refs.get(j)));
+                        out.write(ND_END);
+                    }
+                    ndsWritten = true;
                 }
+                continue;
             }
-            
-            if (!parse) System.out.println("did not write way " + wayId);
-        } //end for (Map.Entry<Long, Integer> entry : waysMap.entrySet())
-        
-        for (String s : extraWays) {
-            fh.write(s);
+            out.write(b, start, end - start);
+            out.write('\n');
         }
+    }
+    
+    /**
+     * readRelation: read the current relation of a reader up to the next
+     * relation or the end of the tile
+     * @param tr
+     * @param attr
+     * @param lines - gets the lines of the relation
+     * @param members - the members are added to it
+     * @param copy - number of the copy of the relation, from 1
+     * @throws IOException
+     */
+    void readRelation(TileReader tr, Attributes attr, ElementLines lines, RelationMembers members, int copy) throws IOException {
+        XmlScanner scanner = tr.scanner;
         
-        System.out.println(": wrote " + writeCount + " ways to output file");
-
-        fh.write("</osm>\n");
-        fh.close();
+        lines.add(scanner, false);
+        members.startCopy(copy);
+        tr.pending = false;
+        
+        while (scanner.next()) {
+            if (isTopLevel(scanner)) {
+                tr.pending = true;
+                break;
+            }
+            if (scanner.kind == XmlScanner.MEMBER) {
+                attr.parse(scanner.buf, scanner.start, scanner.end);
+                members.add(RelationMembers.key(attr.type, attr.ref), scanner.buf, scanner.lineStart, scanner.end);
+            }
+            lines.add(scanner, scanner.kind == XmlScanner.MEMBER);
+        }
     }
     
     /**
-     * mergeSegments: merge ArrayLists of node IDs
-     * @param list
+     * writeRelation: write a relation with the united member list
+     * @param out
+     * @param lines - of the relation, see readRelation()
+     * @param members
+     * @throws IOException
+     */
+    static void writeRelation(OutputStream out, ElementLines lines, RelationMembers members) throws IOException {
+        boolean membersWritten = false;
+        
+        for (int i = 0; i < lines.count; i++) {
+            if (lines.children.get(i) || (i == 1 && lines.children.isEmpty())) {
+                if (!membersWritten) {
+                    members.write(out);
+                    membersWritten = true;
+                }
+                if (lines.children.get(i)) continue;
+            }
+            out.write(lines.data, lines.start[i], lines.end[i] - lines.start[i]);
+            out.write('\n');
+        }
+    }
+    
+    /**
+     * mergeSegments: stitch the segments of a split way, one per tile, at
+     * their remote nodes
+     * @param segments
      * @param debug
-     * @return 
+     * @return the merged way, more than one part if tiles are missing
      */
-    ArrayList<WaySegment> mergeSegments(LinkedList<WaySegment> segments, boolean debug) {
-        WaySegment result = new WaySegment();
+    ArrayList<WaySegment> mergeSegments(ArrayList<WaySegment> segments, boolean debug) {
+        Stitching s = new Stitching(segments);
         ArrayList<WaySegment> resultList = new ArrayList<WaySegment>();
         boolean closed = false;
-        boolean incomplete = false;
         
         //trim duplicate closed-way nodes
-        for (int i = 0; i < segments.size(); i++) {
-            ArrayList<Long> r = segments.get(i).refs;
-            ArrayList<Long> rtn = segments.get(i).refTn;
-            
-            if (rtn.get(rtn.size() - 1) != 0 && rtn.get(rtn.size() - 2) != 0) {
-                rtn.remove(rtn.size() - 1);
-                r.remove(r.size() - 1);
+        for (WaySegment seg : s.segments) {
+            if (seg.tnAt(0, true) != 0 && seg.tnAt(1, true) != 0) {
+                seg.remove(true);
                 closed = true;
             }
-            if (rtn.get(0) != 0 && rtn.get(1) != 0) {
-                rtn.remove(0);
-                r.remove(0);
+            if (seg.tnAt(0, false) != 0 && seg.tnAt(1, false) != 0) {
+                seg.remove(false);
                 closed = true;
             }
         }
         
-        WaySegment a = new WaySegment();
-        
-        
-        while (!segments.isEmpty()) {
+        while (s.live > 0) {
             
 if (debug) {
-    for (WaySegment ws : segments) {
-        System.out.println(ws.print());
-    }
-    System.out.println("");
+    s.print();
 }
 
-            a = segments.get(0);
-
             //find the first segment, if available
-            for (int i = 0; i < segments.size(); i++) {
-                if (!segments.get(i).refTn.isEmpty()) {
-                    if (segments.get(i).refTn.get(0) == 0) {
-                        a = segments.get(i);
-                        break;
-                    }
+            WaySegment a = null;
+            
+            for (WaySegment seg : s.segments) {
+                if (seg.done) continue;
+                if (a == null) a = seg;
+                if (seg.size() > 0 && seg.tnAt(0, false) == 0) {
+                    a = seg;
+                    break;
                 }
             }
 
             //try forward merge
-            result = iterateSegments(segments, a, false, debug);
+            WaySegment result = iterateSegments(s, a, false, debug);
             
 if (debug) {
-    System.out.println("");
-    System.out.println("result after forward merge: "+result.print());
-    System.out.println("");
-    for (WaySegment ws : segments) {
-        System.out.println(ws.print());
-    }
-    System.out.println("");
+    System.out.println("result after forward merge: " + result.print());
+    s.print();
 }
 
-            if (!segments.isEmpty()) {
-                a = new WaySegment(result);
-
-                //try backward merge
-                result = iterateSegments(segments, a, true, debug);
-                
-                segments.remove(a);
-                
-                //invert order
-                for (int i = result.refs.size() - 1; i >= 0; i--) {
-                    result.refs.add(result.refs.get(i));
-                    result.refs.remove(i);
-                }
+            if (s.live > 0) {
+                //try backward merge, from the end of the result
+                result = iterateSegments(s, result, true, debug);
+                result.reverse();
                 
 if (debug) {
-    System.out.println("");
-    System.out.println("result after backward merge: "+result.print());
-    System.out.println("");
+    System.out.println("result after backward merge: " + result.print());
 }
             }
             
-            incomplete = result.refTn.get(result.refTn.size() - 1) != 0 || result.refTn.get(0) != 0;
-
+            boolean incomplete = result.tnAt(0, true) != 0 || result.tnAt(0, false) != 0;
+            
             //closed ways
             if (incomplete && closed) {
-                result.refs.add(result.refs.get(0));
+                result.refs.add(result.refs.first());
             }
-
-            resultList.add(new WaySegment(result));
-            
-            result.refs.clear();
-            result.refTn.clear();
-        } //end while (!segments.isEmpty())
-        
-if (debug) {
-    System.out.println("resultList:");
-    for (WaySegment ws : resultList) {
-        System.out.println(ws.refs);
-    }
-    System.out.println("");
-}
+            resultList.add(result);
+        }
         
         return resultList;
     }
     
     /**
-     * iterateSegments
-     * @param segments
-     * @param a
+     * iterateSegments: follow a way from the start (or the end) of a segment
+     * through the segments of the tiles it enters
+     * @param s
+     * @param a - the segment to start with
      * @param backward
      * @param debug
-     * @return
+     * @return the nodes passed
      */
-    WaySegment iterateSegments(LinkedList<WaySegment> segments, WaySegment a, boolean backward, boolean debug) {
+    WaySegment iterateSegments(Stitching s, WaySegment a, boolean backward, boolean debug) {
         WaySegment result = new WaySegment();
-        int current = backward ? a.refs.size() - 1 : 0;
-        int nextTile;
         boolean skipTile = false;
         
         //first element
-        if (a.refTn.get(current) != 0) {
-            result.refs.add(a.refs.get(current));
-            result.refTn.add(a.refTn.get(current));
-            a.refs.remove(current);
-            a.refTn.remove(current);
+        if (a.tnAt(0, backward) != 0) {
+            result.add(a.refAt(0, backward), a.tnAt(0, backward));
+            a.remove(backward);
         }
         
         //iterate over node refs
-        while (!a.refTn.isEmpty()) {
-            current = backward ? a.refs.size() - 1 : 0;
+        while (a.size() > 0) {
+            long ref = a.refAt(0, backward);
+            long tn = a.tnAt(0, backward);
             
             //if not remote, keep it
-            if (a.refTn.get(current) == 0) {
-                result.refs.add(a.refs.get(current));
-                result.refTn.add(a.refTn.get(current));
-if (debug) {
-    System.out.println("adding "+a.refs.get(current)+" to result");
-}
+            if (tn == 0) {
+                result.add(ref, tn);
             }
             //else get to the next tile
             else {
-                nextTile = -1;
                 skipTile = false;
+                WaySegment next = s.find(tn);
                 
-                for (WaySegment ws : segments) {
-                    if (ws.tn.equals(a.refTn.get(current))) {
-                        nextTile = segments.indexOf(ws);
-                        break;
-                    }
-                }
-            
 if (debug) {
-    System.out.println("nextTile: "+nextTile);
+    System.out.println("next tile: " + (next == null ? "-" : next.tn));
 }
 
                 //if next tile is missing: check if we can skip it
-                if (nextTile == -1) {
-                    if (segments.size() == 2) {
-                        for (int i = 0; i < segments.size(); i++) {
-                            if (segments.get(i) != a && segments.get(i).refTn.get(backward ? 0 : segments.get(i).refTn.size() - 1) == 0) {
-if (debug) {
-    System.out.println("skipping");
-}
-                                nextTile = i;
-                                skipTile = true;
-                            }
+                if (next == null && s.live == 2) {
+                    for (WaySegment seg : s.segments) {
+                        if (!seg.done && seg != a && seg.tnAt(0, !backward) == 0) {
+                            next = seg;
+                            skipTile = true;
                         }
                     }
                 }
                 //if next tile is available...
-                if (nextTile > -1) {
+                if (next != null) {
                     //if we are skipping, keep remote nodes also
                     if (skipTile) {
-    if (debug) {
-        System.out.println("adding "+a.refs.get(current)+" to result");
-    }
-
-                        result.refs.add(a.refs.get(current));
-                        result.refTn.add(a.refTn.get(current));
+                        result.add(ref, tn);
                     }
                     
                     //special case: only 1 node in outer tile
-                    if (1 < a.refTn.size() && a.refTn.get(backward ? a.refTn.size() - 2 : 1) != 0) {
-                        a.refs.remove(current);
-                        a.refTn.remove(current);
+                    if (1 < a.size() && a.tnAt(1, backward) != 0) {
+                        a.remove(backward);
                     }
                     
-                    //remove a if it's done (i.e. 1 entry left), make a the next segment
-                    if (a.refs.size() <= 1) {
-                        WaySegment a_old = a;
-                        a = segments.get(nextTile);
-                        segments.remove(a_old);
-                    }
-                    else {
-                        a = segments.get(nextTile);
+                    //a is done if 1 entry is left
+                    if (a.size() <= 1) {
+                        s.done(a);
                     }
+                    a = next;
                 }
                 //if it isn't...
                 else {
-if (debug) {
-    System.out.println("adding "+a.refs.get(current)+" to result");
-}
-
-                    result.refs.add(a.refs.get(current));
-                    result.refTn.add(a.refTn.get(current));
-                    
+                    result.add(ref, tn);
                 }
-                current = backward ? a.refs.size() - 1 : 0;
             }
             
             //remove the nd we just added (or the first one, which is remote)
-            if (!a.refs.isEmpty() && !skipTile) {
-                a.refs.remove(current);
-                a.refTn.remove(current);
+            if (a.size() > 0 && !skipTile) {
+                a.remove(backward);
             }
-        } //end while (!a.refTn.isEmpty())
+        } //end while (a.size() > 0)
         
-        if (a.refs.isEmpty()) {
-            segments.remove(a);
-        }
+        s.done(a);
 
         return result;
     }
     
     /**
-     * newReaders
+     * copyElement: copy the current element of a reader and its child
+     * elements, or skip them
      * @param tr
+     * @param write - false to skip
+     * @return false at the end of the tile, true if the next element is pending
+     * @throws IOException
      */
-    void newReaders(ArrayList<TileReader> readers) {
-        try {
-            for (TileReader tr : readers) {
-                FileReader fr = new FileReader(tr.inputFile);
-                tr.inputReader = new BufferedReader(fr);
-                tr.previousLine = "";
+    boolean copyElement(TileReader tr, boolean write) throws IOException {
+        XmlScanner scanner = tr.scanner;
+        
+        if (write) scanner.writeLine(fh);
+        
+        while (scanner.next()) {
+            if (isTopLevel(scanner)) {
+                tr.pending = true;
+                return true;
             }
-        } catch (FileNotFoundException e) {
-            System.err.println("Error: File not found");
+            if (write) scanner.writeLine(fh);
         }
+        tr.pending = false;
+        return false;
+    }
+    
+    /**
+     * isTopLevel: check whether the scanner's current element is a node, a
+     * way, a relation or the end of the tile
+     * @param scanner
+     * @return
+     */
+    static boolean isTopLevel(XmlScanner scanner) {
+        return scanner.kind == XmlScanner.NODE || scanner.kind == XmlScanner.WAY
+                || scanner.kind == XmlScanner.RELATION || scanner.kind == XmlScanner.OSM_END;
+    }
+    
+    /**
+     * isElement: check the ID of the scanner's current element
+     * @param scanner
+     * @param attr
+     * @param id
+     * @return
+     */
+    static boolean isElement(XmlScanner scanner, Attributes attr, long id) {
+        attr.parse(scanner.buf, scanner.start, scanner.end);
+        return attr.hasId && attr.id == id;
+    }
+    
+    /**
+     * write: write a String to the output file
+     * @param s
+     * @throws IOException
+     */
+    void write(String s) throws IOException {
+        fh.write(s.getBytes(StandardCharsets.UTF_8));
     }
 }
 
-class WaySegment {
-    ArrayList<Long> refs;
-    ArrayList<Long> refTn;
-    Long tn;
+/**
+ * The lines of a copy of a way or relation, as read by Merge.readWay() and
+ * Merge.readRelation().
+ */
+class ElementLines {
+    byte[] data = new byte[4096];
+    int size, count;
+    int[] start = new int[64], end = new int[64];
+    BitSet children = new BitSet();     //the <nd> or <member> lines
+    
+    void clear() {
+        size = count = 0;
+        children.clear();
+    }
     
-    WaySegment() {
-        refs = new ArrayList<Long>();
-        refTn = new ArrayList<Long>();
+    /**
+     * add: copy the line of the scanner's current element
+     * @param scanner
+     * @param child - an <nd> or <member> line
+     */
+    void add(XmlScanner scanner, boolean child) {
+        int len = scanner.end - scanner.lineStart;
+        
+        if (size + len > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + len, data.length*2));
+        }
+        if (count == start.length) {
+            start = Arrays.copyOf(start, count*2);
+            end = Arrays.copyOf(end, count*2);
+        }
+        System.arraycopy(scanner.buf, scanner.lineStart, data, size, len);
+        start[count] = size;
+        end[count] = size + len;
+        if (child) children.set(count);
+        size += len;
+        count++;
     }
+}
 
-    WaySegment(WaySegment ws) {
-        refs = new ArrayList<Long>(ws.refs);
-        refTn = new ArrayList<Long>(ws.refTn);
-        tn = ws.tn;
+/**
+ * The <nd>s of a copy of a split way and their tile numbers (0 for local
+ * nodes); when stitching, the nodes not stitched yet.
+ */
+class WaySegment {
+    LongList refs = new LongList(16), refTn = new LongList(16);
+    long tn;
+    boolean done;
+    boolean stitched;       //one of the segments of a Stitching
+    WaySegment sameTile;    //the next segment of the same tile
+    
+    int size() {
+        return refs.size();
+    }
+    
+    /**
+     * refAt, tnAt: a node counted from the start or the end
+     * @param i
+     * @param backward
+     * @return
+     */
+    long refAt(int i, boolean backward) {
+        return refs.get(backward ? refs.size() - 1 - i : i);
+    }
+    
+    long tnAt(int i, boolean backward) {
+        return refTn.get(backward ? refTn.size() - 1 - i : i);
     }
     
-    boolean isEmpty() {
-        return refs.isEmpty() && refTn.isEmpty();
+    void add(long ref, long tn) {
+        refs.add(ref);
+        refTn.add(tn);
+    }
+    
+    void remove(boolean backward) {
+        if (backward) {
+            refs.removeLast();
+            refTn.removeLast();
+        }
+        else {
+            refs.removeFirst();
+            refTn.removeFirst();
+        }
+    }
+    
+    void reverse() {
+        refs.reverse();
+        refTn.reverse();
     }
 
     String print() {
-        String str = tn + ": [";
+        StringBuilder str = new StringBuilder(tn + ": [");
         
         for (int i = 0; i < refs.size(); i++) {
-            str += refs.get(i) + " (" + refTn.get(i) + "), ";
+            str.append(refs.get(i)).append(" (").append(refTn.get(i)).append("), ");
         }
-        str += "]";
-        
-        return str;
+        return str.append("]").toString();
     }
 }
 
+/**
+ * The segments of a split way, indexed by tile number.
+ */
+class Stitching {
+    ArrayList<WaySegment> segments;
+    HashMap<Long, WaySegment> tiles = new HashMap<Long, WaySegment>();
+    int live;       //segments not done
+    
+    Stitching(ArrayList<WaySegment> list) {
+        HashMap<Long, WaySegment> last = new HashMap<Long, WaySegment>();
+        
+        segments = list;
+        for (WaySegment seg : list) {
+            seg.stitched = true;
+            
+            WaySegment previous = last.put(seg.tn, seg);
+            if (previous == null) {
+                tiles.put(seg.tn, seg);
+            }
+            else {
+                previous.sameTile = seg;
+            }
+        }
+        live = segments.size();
+    }
+    
+    /**
+     * find: get the first segment of a tile that is not done
+     * @param tn
+     * @return null if there is none
+     */
+    WaySegment find(long tn) {
+        for (WaySegment seg = tiles.get(tn); seg != null; seg = seg.sameTile) {
+            if (!seg.done) return seg;
+        }
+        return null;
+    }
+    
+    void done(WaySegment seg) {
+        if (seg.stitched && !seg.done) {
+            seg.done = true;
+            live--;
+        }
+    }
+    
+    void print() {
+        for (WaySegment seg : segments) {
+            if (!seg.done) System.out.println(seg.print());
+        }
+        System.out.println("");
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Append-only memory for the node XML of a tile in non-slim mode. Bytes are
+ * stored in chunks of CHUNK_SIZE; the first chunk starts small and grows, so
+ * tiles with few nodes take little memory. Positions work like file offsets,
+ * so the arena is indexed with a NodeOffsetIndex just like a temporary file.
+ */
+public class NodeArena extends RandomAccessOutput implements RecordSource {
+    static final int INITIAL_SIZE = 4096;
+    static final int CHUNK_BITS = 20;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private byte[][] chunks;
+    private long size;
+
+    public NodeArena() {
+        chunks = new byte[4][];
+        size = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        reserve(1);
+        chunks[(int)(size >>> CHUNK_BITS)][(int)(size & CHUNK_MASK)] = (byte)b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        reserve(len);
+
+        while (len > 0) {
+            int offset = (int)(size & CHUNK_MASK);
+            int n = Math.min(len, CHUNK_SIZE - offset);
+            System.arraycopy(b, off, chunks[(int)(size >>> CHUNK_BITS)], offset, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * reserve: make room for len more bytes
+     * @param len
+     */
+    private void reserve(int len) {
+        long end = size + len;
+        int last = (int)((end - 1) >>> CHUNK_BITS);
+
+        if (last >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(last + 1, chunks.length*2));
+        }
+
+        //the first chunk grows up to CHUNK_SIZE
+        if (last == 0) {
+            if (chunks[0] == null || chunks[0].length < end) {
+                int n = chunks[0] == null ? INITIAL_SIZE : chunks[0].length;
+                while (n < end) n *= 2;
+                chunks[0] = chunks[0] == null ? new byte[n] : Arrays.copyOf(chunks[0], n);
+            }
+            return;
+        }
+        if (chunks[0].length < CHUNK_SIZE) {
+            chunks[0] = Arrays.copyOf(chunks[0], CHUNK_SIZE);
+        }
+        for (int c = (int)(size >>> CHUNK_BITS); c <= last; c++) {
+            if (chunks[c] == null) chunks[c] = new byte[CHUNK_SIZE];
+        }
+    }
+
+    @Override
+    public long position() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+        if (position + len > size) {
+            throw new EOFException("read beyond the end of the node arena");
+        }
+        while (len > 0) {
+            int offset = (int)(position & CHUNK_MASK);
+            int n = Math.min(len, CHUNK_SIZE - offset);
+            System.arraycopy(chunks[(int)(position >>> CHUNK_BITS)], offset, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void copy(long position, int len, OutputStream out) throws IOException {
+        if (position + len > size) {
+            throw new EOFException("read beyond the end of the node arena");
+        }
+        while (len > 0) {
+            int offset = (int)(position & CHUNK_MASK);
+            int n = Math.min(len, CHUNK_SIZE - offset);
+            out.write(chunks[(int)(position >>> CHUNK_BITS)], offset, n);
+            position += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * close: nothing to do, the bytes stay readable until release()
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void release() {
+        chunks = new byte[4][];
+        size = 0;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.util.Arrays;
+
+/**
+ * Index from node ID to the position of the node's XML in a temporary file,
+ * kept in growable primitive arrays (16 bytes per node).
+ *
+ * Entries are added in the order the nodes are written, and the XML of a node
+ * is contiguous, so an entry ends where the next one starts; the last one ends
+ * at the current end of the file. OSM files list nodes by ascending ID, so
+ * lookups are a binary search; an index with IDs out of order falls back to a
+ * linear search until sort() is called.
+ */
+public class NodeOffsetIndex {
+    private long[] ids;
+    private long[] offsets;
+    private int[] lengths;  //set by sort()
+    private int size;
+    private boolean ascending;
+
+    public NodeOffsetIndex() {
+        ids = new long[1024];
+        offsets = new long[1024];
+        size = 0;
+        ascending = true;
+    }
+
+    /**
+     * add: record the start of a node
+     * @param id
+     * @param offset
+     */
+    public void add(long id, long offset) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size*2);
+            offsets = Arrays.copyOf(offsets, size*2);
+        }
+        if (size > 0 && id <= ids[size - 1]) {
+            ascending = false;
+        }
+        ids[size] = id;
+        offsets[size] = offset;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long id(int i) {
+        return ids[i];
+    }
+
+    public long offset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * length: the number of bytes of an entry
+     * @param i
+     * @param end - end of the file the last entry is in
+     * @return
+     */
+    public int length(int i, long end) {
+        if (lengths != null) return lengths[i];
+        return (int)((i + 1 < size ? offsets[i + 1] : end) - offsets[i]);
+    }
+
+    /**
+     * find: look up a node
+     * @param id
+     * @return the entry, or -1 if the node is not in the index
+     */
+    public int find(long id) {
+        if (ascending) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            return i < 0 ? -1 : i;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * sort: order the entries by ID and keep only the first entry of each
+     * ID. Lengths are fixed before the entries move, so no more entries can
+     * be added afterwards.
+     * @param end - end of the file the last entry is in
+     */
+    public void sort(long end) {
+        lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            lengths[i] = (int)((i + 1 < size ? offsets[i + 1] : end) - offsets[i]);
+        }
+        if (ascending) return;
+
+        //stable merge sort of the entry numbers by ID
+        int[] order = new int[size];
+        int[] tmp = new int[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size; lo += 2*width) {
+                int mid = Math.min(lo + width, size), hi = Math.min(lo + 2*width, size);
+                int a = lo, b = mid, k = lo;
+
+                while (a < mid && b < hi) {
+                    tmp[k++] = ids[order[b]] < ids[order[a]] ? order[b++] : order[a++];
+                }
+                while (a < mid) tmp[k++] = order[a++];
+                while (b < hi) tmp[k++] = order[b++];
+            }
+            int[] swap = order;
+            order = tmp;
+            tmp = swap;
+        }
+
+        long[] sortedIds = new long[size];
+        long[] sortedOffsets = new long[size];
+        int[] sortedLengths = new int[size];
+        int n = 0;
+
+        for (int i = 0; i < size; i++) {
+            int e = order[i];
+            if (n > 0 && ids[e] == sortedIds[n - 1]) continue;
+            sortedIds[n] = ids[e];
+            sortedOffsets[n] = offsets[e];
+            sortedLengths[n] = lengths[e];
+            n++;
+        }
+        ids = sortedIds;
+        offsets = sortedOffsets;
+        lengths = sortedLengths;
+        size = n;
+        ascending = true;
+    }
+}
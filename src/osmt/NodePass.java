@@ -0,0 +1,249 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parallel pass over the node section at the start of an OSM XML file.
+ *
+ * The file is cut into chunks of CHUNK_SIZE bytes. A chunk holds the nodes
+ * whose <node> tag starts in it; their child elements belong to it as well,
+ * even past its end. Chunks are scanned and parsed on a fork-join pool, each
+ * into its own per-tile buffers. They are merged in file order, so the nodes
+ * of every tile stay in input order: the node index is updated, and the
+ * buffers are appended to the tiles, one task per TileShard.
+ *
+ * The pass ends at the first way, relation or </osm>; run() returns its
+ * offset, where Split continues with the sequential pipeline.
+ */
+public class NodePass {
+    static final int CHUNK_SIZE = 8 << 20;
+
+    private Split split;
+    private String fileName;
+    private int threads;
+    private long nodeCount;
+
+    /**
+     * The nodes of a chunk, by tile.
+     */
+    static class Chunk {
+        HashMap<Long, NodeOffsetIndex> index = new HashMap<Long, NodeOffsetIndex>();
+        HashMap<Long, NodeArena> data = new HashMap<Long, NodeArena>();
+        long[] ids = new long[1024], tns = new long[1024];
+        int count;
+        long nodesEnd = -1;     //offset of the element after the nodes, if in this chunk
+    }
+
+    /**
+     * Constructor
+     * @param split - provides the tiles and the node index
+     * @param fileName
+     * @param threads
+     */
+    public NodePass(Split split, String fileName, int threads) {
+        this.split = split;
+        this.fileName = fileName;
+        this.threads = threads;
+    }
+
+    /**
+     * run: read all nodes up to the first other element
+     * @return the offset of the first element after the nodes
+     * @throws Exception
+     */
+    public long run() throws Exception {
+        long size;
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+
+        try {
+            size = channel.size();
+        } finally {
+            channel.close();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayDeque<ForkJoinTask<Chunk>> chunks = new ArrayDeque<ForkJoinTask<Chunk>>();
+        long next = 0, nodesEnd = size;
+
+        try {
+            while (true) {
+                //keep a bounded number of chunks in flight
+                while (next < size && chunks.size() < 2*threads) {
+                    final long start = next, end = Math.min(size, next + CHUNK_SIZE);
+
+                    chunks.add(pool.submit(new Callable<Chunk>() {
+                        public Chunk call() throws IOException {
+                            return scan(start, end);
+                        }
+                    }));
+                    next = end;
+                }
+                if (chunks.isEmpty()) break;
+
+                Chunk chunk = chunks.poll().get();
+                merge(pool, chunk);
+
+                if (chunk.nodesEnd >= 0) {
+                    nodesEnd = chunk.nodesEnd;
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.out.println("read " + nodeCount + " nodes");
+        return nodesEnd;
+    }
+
+    /**
+     * scan: read the nodes of a chunk
+     * @param start
+     * @param end
+     * @return
+     * @throws IOException
+     */
+    Chunk scan(long start, long end) throws IOException {
+        Chunk chunk = new Chunk();
+
+        //start early enough to see the indentation of the first node
+        long from = Math.max(0, start - XmlScanner.MAX_INDENT);
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        channel.position(from);
+        XmlScanner xml = new XmlScanner(Channels.newInputStream(channel), 1 << 16, from);
+        Attributes attr = new Attributes();
+        NodeOffsetIndex index = null;
+        NodeArena data = null;
+
+        try {
+            while (true) {
+                //end of the file, in the last chunk
+                if (!xml.next()) {
+                    chunk.nodesEnd = end;
+                    break;
+                }
+                boolean topLevel = xml.kind == XmlScanner.NODE || xml.kind == XmlScanner.WAY
+                        || xml.kind == XmlScanner.RELATION || xml.kind == XmlScanner.OSM_END;
+
+                //before the first node of the chunk
+                if (index == null && data == null && (!topLevel || xml.offset(xml.start) < start)) {
+                    continue;
+                }
+                //a node or the end of the nodes in the next chunk
+                if (topLevel && xml.offset(xml.start) >= end) {
+                    break;
+                }
+
+                if (xml.kind == XmlScanner.NODE) {
+                    attr.parse(xml.buf, xml.start, xml.end);
+                    long tn = NodeToTileNumber.tileNumber(attr.lat, attr.lon);
+
+                    if (chunk.count == chunk.ids.length) {
+                        chunk.ids = Arrays.copyOf(chunk.ids, chunk.count*2);
+                        chunk.tns = Arrays.copyOf(chunk.tns, chunk.count*2);
+                    }
+                    chunk.ids[chunk.count] = attr.id;
+                    chunk.tns[chunk.count] = tn;
+                    chunk.count++;
+
+                    //invalid coordinates: tile -1, as in Split
+                    if (tn == 0) tn = -1;
+
+                    index = chunk.index.get(tn);
+                    if (index == null) {
+                        index = new NodeOffsetIndex();
+                        data = new NodeArena();
+                        chunk.index.put(tn, index);
+                        chunk.data.put(tn, data);
+                    }
+                    else {
+                        data = chunk.data.get(tn);
+                    }
+                    index.add(attr.id, data.position());
+                }
+                else if (topLevel) {
+                    chunk.nodesEnd = xml.offset(xml.lineStart);
+                    break;
+                }
+                //</node>, tags
+                data.write(xml.buf, xml.lineStart, xml.end - xml.lineStart);
+                data.write('\n');
+            }
+        } finally {
+            xml.close();
+        }
+        return chunk;
+    }
+
+    /**
+     * merge: add the nodes of a chunk to the node index and the tiles
+     * @param pool
+     * @param chunk
+     * @throws Exception
+     */
+    void merge(ForkJoinPool pool, Chunk chunk) throws Exception {
+        //group the tiles by shard
+        HashMap<TileShard, ArrayList<Tile>> shards = new HashMap<TileShard, ArrayList<Tile>>();
+
+        for (Long tn : chunk.index.keySet()) {
+            Tile t = split.tile(tn);
+
+            if (!shards.containsKey(t.shard)) {
+                shards.put(t.shard, new ArrayList<Tile>());
+            }
+            shards.get(t.shard).add(t);
+        }
+
+        ArrayList<ForkJoinTask<?>> appends = new ArrayList<ForkJoinTask<?>>();
+
+        for (Map.Entry<TileShard, ArrayList<Tile>> e : shards.entrySet()) {
+            final ArrayList<Tile> tiles = e.getValue();
+            final Chunk c = chunk;
+
+            appends.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (Tile t : tiles) {
+                        t.appendNodes(c.index.get(t.tn), c.data.get(t.tn));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        //write tile numbers to the index meanwhile
+        for (int i = 0; i < chunk.count; i++) {
+            if (chunk.tns[i] != 0) {
+                split.n2tn.setTn(chunk.ids[i], chunk.tns[i]);
+            }
+        }
+        nodeCount += chunk.count;
+
+        for (ForkJoinTask<?> append : appends) {
+            append.get();
+        }
+    }
+}
@@ -31,6 +31,15 @@ public class NodeToTileNumber {
         tilesizeLon = tilesize;
     }
     
+    /**
+     * Constructor for subclasses that keep the index elsewhere
+     * @param tilesize
+     */
+    protected NodeToTileNumber(float tilesize) {
+        tilesizeLat = tilesize;
+        tilesizeLon = tilesize;
+    }
+    
     /**
      * setTn - set tile number calculated from lat/lon
      * @param nodeId
@@ -40,19 +49,10 @@ public class NodeToTileNumber {
      * @throws IOException
      */
     public long setTn(long nodeId, float lat, float lon) throws IOException {
-        //4 bytes for tile number
-        long seekPos = nodeId*8;
-        
-        if (this.node2tn.length() < seekPos) {
-            this.node2tn.setLength(seekPos + (8*1024*1024*100));
-        }
-        
-        boolean coordinatesValid = 90.0 >= lat && -90.0 <= lat && -180.0 <= lon && 180.0 >= lon;
+        long tn = tileNumber(lat, lon);
 
-        if (coordinatesValid) {
-            long tn = ((lat+lon) != 0) ? calcTn(lat, lon) : -1;
-            this.node2tn.seek(seekPos);
-            this.node2tn.writeLong(tn);
+        if (tn != 0) {
+            setTn(nodeId, tn);
             return tn;
         }
         return -1;
@@ -79,14 +79,38 @@ public class NodeToTileNumber {
      * getTn - get tile number
      * @param nodeId
      * @return
-     * @throws Exception
+     * @throws IOException
      */
-    public long getTn(long nodeId) throws Exception {
+    public long getTn(long nodeId) throws IOException {
         node2tn.seek(nodeId*8);
         long tn = node2tn.readLong();
         return tn;
     }
     
+    /**
+     * close - release the index file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        node2tn.close();
+    }
+    
+    /**
+     * tileNumber - the tile number setTn(nodeId, lat, lon) stores for a node
+     * @param lat
+     * @param lon
+     * @return the tile number, -1 for lat+lon = 0, 0 for invalid coordinates
+     *         (nothing is stored)
+     */
+    public static long tileNumber(float lat, float lon) {
+        boolean coordinatesValid = 90.0 >= lat && -90.0 <= lat && -180.0 <= lon && 180.0 >= lon;
+
+        if (coordinatesValid) {
+            return ((lat+lon) != 0) ? calcTn(lat, lon) : -1;
+        }
+        return 0;
+    }
+
     /**
      * calcTn - calculate tile number from lat/lon
      * @param lat
@@ -97,6 +121,28 @@ public class NodeToTileNumber {
         return ((long)((lat + 90)/tilesizeLat) + (long)((lon + 180)/tilesizeLon) * (long)(180/tilesizeLon)) + 1;
     }
     
+    /**
+     * maxTn - the largest tile number for the current tile size
+     * @return
+     */
+    public static long maxTn() {
+        long rows = (long)(180/tilesizeLat);
+        return rows + (long)(360/tilesizeLon) * (long)(180/tilesizeLon) + 1;
+    }
+    
+    /**
+     * indexWidth - bytes needed to store a tile number in the index. The
+     * largest value of each width is reserved for -1 (invalid coordinates).
+     * @return 2, 4 or 8
+     */
+    public static int indexWidth() {
+        long max = maxTn();
+        
+        if (max < 0xFFFFL) return 2;
+        if (max < 0xFFFFFFFFL) return 4;
+        return 8;
+    }
+    
     /**
      * getBounds - calculate bounding box from tile number
      * @param tn
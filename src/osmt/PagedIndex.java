@@ -0,0 +1,207 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sparse array of unsigned values indexed by a long key (e.g. a node ID),
+ * stored in a memory-mapped file. Values are 2, 4 or 8 bytes wide; the width
+ * is fixed when the index is created and recorded in the file header.
+ *
+ * The key space is cut into pages of PAGE_SIZE entries. A directory maps each
+ * page number to the position of its page in the file; pages are appended to
+ * the file the first time a key in them is written, so only pages that hold
+ * keys take up space. Keys that were never written read as 0.
+ *
+ * The pages follow a header of HEADER_SIZE bytes and are mapped in segments
+ * of 64 MB, so the file grows in small steps and every mapping stays below
+ * the 2 GB limit of a single MappedByteBuffer. A segment always holds a whole
+ * number of pages.
+ */
+public class PagedIndex {
+    static final int PAGE_BITS = 16;
+    static final long PAGE_SIZE = 1L << PAGE_BITS;
+    static final long PAGE_MASK = PAGE_SIZE - 1;
+    static final int SEGMENT_BITS = 26;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    static final int HEADER_SIZE = 64;
+    static final long MAGIC = 0x4f534d5449445831L;   //"OSMTIDX1"
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer[] segments;
+
+    //directory: page number -> allocated page + 1 (0 = not allocated)
+    private int[] directory;
+    private int allocatedPages;
+    private final int width;
+    private final long pageBytes;
+
+    /**
+     * Constructor
+     * @param fileName
+     * @param width - value width in bytes (2, 4 or 8)
+     * @throws IOException
+     */
+    public PagedIndex(String fileName, int width) throws IOException {
+        if (width != 2 && width != 4 && width != 8) {
+            throw new IllegalArgumentException("invalid index width: " + width);
+        }
+        this.width = width;
+        pageBytes = PAGE_SIZE*width;
+        
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        segments = new MappedByteBuffer[16];
+        directory = new int[1024];
+        allocatedPages = 0;
+        
+        writeHeader();
+    }
+    
+    /**
+     * writeHeader: magic, format version, value width and page size
+     * @throws IOException
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC);
+        header.putInt(1);
+        header.putInt(width);
+        header.putInt(PAGE_BITS);
+        header.rewind();
+        channel.write(header, 0);
+    }
+    
+    /**
+     * maxValue - the largest value this index can hold
+     * @return
+     */
+    public long maxValue() {
+        return width == 8 ? -1L : (1L << (width*8)) - 1;
+    }
+
+    /**
+     * set - store a value
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void set(long key, long value) throws IOException {
+        long pos = position(key, true);
+        MappedByteBuffer segment = segment((int)(pos >>> SEGMENT_BITS));
+        int offset = (int)(pos & SEGMENT_MASK);
+        
+        switch (width) {
+        case 2:
+            segment.putShort(offset, (short)value);
+            break;
+        case 4:
+            segment.putInt(offset, (int)value);
+            break;
+        default:
+            segment.putLong(offset, value);
+        }
+    }
+
+    /**
+     * get - read a value
+     * @param key
+     * @return the value, 0 if the key has not been set
+     * @throws IOException
+     */
+    public long get(long key) throws IOException {
+        long pos = position(key, false);
+        
+        if (pos < 0) return 0;
+        
+        MappedByteBuffer segment = segment((int)(pos >>> SEGMENT_BITS));
+        int offset = (int)(pos & SEGMENT_MASK);
+        
+        switch (width) {
+        case 2:
+            return segment.getShort(offset) & 0xFFFFL;
+        case 4:
+            return segment.getInt(offset) & 0xFFFFFFFFL;
+        default:
+            return segment.getLong(offset);
+        }
+    }
+
+    /**
+     * position - find the file position of a key
+     * @param key
+     * @param allocate - allocate the page if it does not exist yet
+     * @return the position behind the header, or -1 if the page does not exist
+     */
+    private long position(long key, boolean allocate) {
+        long page = key >>> PAGE_BITS;
+
+        if (page >= directory.length) {
+            if (!allocate) return -1;
+            if (page >= Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("key out of range: " + key);
+            }
+            directory = Arrays.copyOf(directory, (int)Math.min(Integer.MAX_VALUE - 1, Math.max(page + 1, directory.length*2L)));
+        }
+
+        int p = directory[(int)page];
+
+        if (p == 0) {
+            if (!allocate) return -1;
+            p = ++allocatedPages;
+            directory[(int)page] = p;
+        }
+        return (p - 1)*pageBytes + (key & PAGE_MASK)*width;
+    }
+
+    /**
+     * segment - get a mapped segment, mapping it on first use
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private MappedByteBuffer segment(int index) throws IOException {
+        if (index >= segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(index + 1, segments.length*2));
+        }
+
+        MappedByteBuffer segment = segments[index];
+
+        if (segment == null) {
+            //mapping beyond the end grows the file
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + ((long)index << SEGMENT_BITS), SEGMENT_SIZE);
+            segments[index] = segment;
+        }
+        return segment;
+    }
+
+    /**
+     * close - release the index file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        Arrays.fill(segments, null);
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,1141 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for OSM PBF files. A reader thread reads the blobs of the file,
+ * worker threads decompress and decode them in parallel, and take() hands out
+ * the result in file order.
+ *
+ * Each entity is turned into the XML lines the XML input would have, so the
+ * batches can be processed exactly like those of an ElementReader: the lines
+ * end up in the tiles, and the IDs, refs, member types and roles and node tile
+ * numbers are filled in like by ElementBatch.parse().
+ *
+ * xml() provides the same lines as an XML document; this is how Merge reads
+ * PBF tiles. The tile numbers PbfTileWriter stores in its reserved way tag
+ * become tn attributes of the <nd>s again.
+ *
+ * Raw and zlib compressed blobs are supported, as well as the features
+ * "OsmSchema-V0.6" and "DenseNodes".
+ */
+public class PbfReader implements ElementSource {
+    static final int MAX_HEADER_SIZE = 64 * 1024;
+    static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * A data blob of the file and the batches decoded from it.
+     */
+    static class Block {
+        byte[] blob;
+        ArrayList<ElementBatch> batches = new ArrayList<ElementBatch>();
+        private boolean decoded;
+        private Exception error;
+
+        synchronized void done(Exception e) {
+            error = e;
+            decoded = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws Exception {
+            while (!decoded) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private static final Block END = new Block();
+
+    private DataInputStream in;
+    private BlockingQueue<Block> parse, ordered;
+    private ConcurrentLinkedQueue<ElementBatch> free;
+    private Thread reader;
+    private Thread[] workers;
+    private volatile Exception error;
+
+    private volatile String bounds;     //<bounds> line from the header, if it has a bbox
+
+    private Block current;      //the block take() hands out
+    private int next;           //its next batch
+    private boolean finished;
+
+    /**
+     * Constructor: start the reader and decoder threads
+     * @param in
+     * @param threads - number of decoder threads
+     */
+    public PbfReader(InputStream in, int threads) {
+        this.in = new DataInputStream(in);
+
+        int blocks = 2*threads + 2;
+        parse = new ArrayBlockingQueue<Block>(blocks + threads);
+        ordered = new ArrayBlockingQueue<Block>(blocks + 1);
+        free = new ConcurrentLinkedQueue<ElementBatch>();
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "osmt-pbf-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "osmt-read");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * isPbf: check whether a stream starts with a PBF "OSMHeader" blob header
+     * @param in - a stream that supports mark/reset; nothing is consumed
+     * @return
+     * @throws IOException
+     */
+    static boolean isPbf(InputStream in) throws IOException {
+        byte[] b = Input.peek(in, 15);
+
+        //header size, then field 1 (type) of length 9: "OSMHeader"
+        return b.length == 15 && b[0] == 0 && b[4] == 0x0a && b[5] == 9
+                && Attributes.match(b, 6, 15, "OSMHeader");
+    }
+
+    /**
+     * read: the reader stage
+     */
+    private void read() {
+        try {
+            try {
+                ProtoReader pb = new ProtoReader();
+
+                while (true) {
+                    int headerSize;
+                    try {
+                        headerSize = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                        throw new IOException("invalid PBF blob header size: " + headerSize);
+                    }
+                    byte[] header = new byte[headerSize];
+                    in.readFully(header);
+
+                    //BlobHeader
+                    String type = null;
+                    int dataSize = -1;
+
+                    pb.reset(header, 0, headerSize);
+                    while (pb.next()) {
+                        if (pb.field == 1) type = pb.string();
+                        else if (pb.field == 3) dataSize = (int)pb.varint();
+                        else pb.skip();
+                    }
+                    if (dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                        throw new IOException("invalid PBF blob size: " + dataSize);
+                    }
+                    byte[] blob = new byte[dataSize];
+                    in.readFully(blob);
+
+                    if ("OSMHeader".equals(type)) {
+                        new Decoder().header(blob);
+                    }
+                    else if ("OSMData".equals(type)) {
+                        Block block = new Block();
+                        block.blob = blob;
+                        ordered.put(block);
+                        parse.put(block);
+                    }
+                    //other blob types are skipped
+                }
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                ordered.put(END);
+                for (int i = 0; i < workers.length; i++) {
+                    parse.put(END);
+                }
+            }
+        } catch (InterruptedException e) {
+            //the pipeline is shutting down
+        }
+    }
+
+    /**
+     * work: a decoder thread
+     */
+    private void work() {
+        Decoder decoder = new Decoder();
+
+        try {
+            Block block;
+
+            while ((block = parse.take()) != END) {
+                try {
+                    decoder.decode(block);
+                    block.done(null);
+                } catch (Exception e) {
+                    block.done(e);
+                }
+                block.blob = null;
+            }
+        } catch (InterruptedException e) {
+            //the pipeline is shutting down
+        }
+    }
+
+    @Override
+    public ElementBatch take() throws Exception {
+        while (true) {
+            if (current != null && next < current.batches.size()) {
+                return current.batches.get(next++);
+            }
+            if (finished) return null;
+
+            current = ordered.take();
+            next = 0;
+
+            if (current == END) {
+                finished = true;
+                if (error != null) throw error;
+                return null;
+            }
+            current.await();
+        }
+    }
+
+    @Override
+    public void recycle(ElementBatch batch) {
+        free.add(batch);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        in.close();
+    }
+
+    /**
+     * xml: read the entities as an OSM XML document, one element per line,
+     * e.g. with an XmlScanner
+     * @return
+     */
+    public InputStream xml() {
+        return new XmlStream();
+    }
+
+    /**
+     * The lines of the batches of take(), between the <osm> root tags.
+     */
+    private class XmlStream extends InputStream {
+        private byte[] buf = new byte[ElementBatch.MAX_BYTES];
+        private int pos, limit;
+        private boolean started, ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            while (pos == limit) {
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * fill: convert the next batch
+         * @return false at the end of the document
+         * @throws IOException
+         */
+        private boolean fill() throws IOException {
+            if (ended) return false;
+
+            ElementBatch batch;
+            try {
+                batch = take();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            pos = limit = 0;
+
+            //the header has been read with the first block
+            if (!started) {
+                append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" generator=\"osmt\">\n");
+                if (bounds != null) append(bounds + "\n");
+                started = true;
+            }
+            if (batch == null) {
+                append("</osm>\n");
+                ended = true;
+                return true;
+            }
+            for (int e = 0; e < batch.count; e++) {
+                int n = batch.end[e] - batch.lineStart[e];
+
+                if (limit + n + 1 > buf.length) {
+                    buf = Arrays.copyOf(buf, Math.max(limit + n + 1, buf.length*2));
+                }
+                System.arraycopy(batch.data, batch.lineStart[e], buf, limit, n);
+                limit += n;
+                buf[limit++] = '\n';
+            }
+            recycle(batch);
+            return true;
+        }
+
+        private void append(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+
+            if (limit + b.length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(limit + b.length, buf.length*2));
+            }
+            System.arraycopy(b, 0, buf, limit, b.length);
+            limit += b.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            PbfReader.this.close();
+        }
+    }
+
+    /**
+     * Decodes blobs into ElementBatches; one per decoder thread.
+     */
+    private class Decoder {
+        private ProtoReader pb = new ProtoReader();
+        private Inflater inflater = new Inflater();
+        private byte[] raw = new byte[1 << 20];
+        private byte[] data;
+        private int dataOff, dataLen;
+
+        //PrimitiveBlock
+        private int[] strOff = new int[1024], strLen = new int[1024];
+        private int strCount;
+        private byte[][] escaped = new byte[1024][];
+        private String[] roles = new String[1024];
+        private int[] groupOff = new int[16], groupLen = new int[16];
+        private int groups;
+        private long granularity, latOffset, lonOffset, dateGranularity;
+
+        //entity fields
+        private LongList ids = new LongList(), lats = new LongList(), lons = new LongList();
+        private LongList keys = new LongList(), vals = new LongList(), refs = new LongList();
+        private LongList types = new LongList(), roleSids = new LongList();
+        private LongList versions = new LongList(), timestamps = new LongList(), changesets = new LongList();
+        private LongList uids = new LongList(), userSids = new LongList();
+        private LongList tns = new LongList();
+        private boolean hasInfo;
+        private long version, timestamp, changeset, uid, userSid;
+
+        //output
+        private byte[] line = new byte[1024];
+        private int len;
+        private Block block;
+        private ElementBatch batch;
+
+        /**
+         * header: check the HeaderBlock for features we do not support
+         * @param blob
+         * @throws IOException
+         */
+        void header(byte[] blob) throws IOException, DataFormatException {
+            blob(blob);
+            pb.reset(data, dataOff, dataLen);
+
+            while (pb.next()) {
+                if (pb.field == 1) {
+                    bbox();
+                }
+                else if (pb.field == 4) {
+                    String feature = pb.string();
+
+                    if (!feature.equals("OsmSchema-V0.6") && !feature.equals("DenseNodes")) {
+                        throw new IOException("unsupported PBF feature: " + feature);
+                    }
+                }
+                else {
+                    pb.skip();
+                }
+            }
+        }
+
+        /**
+         * bbox: turn the HeaderBBox into a <bounds> line
+         * @throws IOException
+         */
+        private void bbox() throws IOException {
+            int outer = pb.enter();
+            long left = 0, right = 0, top = 0, bottom = 0;
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: left = pb.sint(); break;
+                case 2: right = pb.sint(); break;
+                case 3: top = pb.sint(); break;
+                case 4: bottom = pb.sint(); break;
+                default: pb.skip();
+                }
+            }
+            pb.leave(outer);
+
+            len = 0;
+            ascii(" <bounds minlat=\"");
+            coordinate(bottom);
+            ascii("\" minlon=\"");
+            coordinate(left);
+            ascii("\" maxlat=\"");
+            coordinate(top);
+            ascii("\" maxlon=\"");
+            coordinate(right);
+            ascii("\"/>");
+            bounds = Attributes.string(line, 0, len);
+        }
+
+        /**
+         * decode: decode the PrimitiveBlock of a data blob into batches
+         * @param block
+         * @throws Exception
+         */
+        void decode(Block block) throws Exception {
+            this.block = block;
+            batch = null;
+            blob(block.blob);
+
+            granularity = 100;
+            dateGranularity = 1000;
+            latOffset = lonOffset = 0;
+            strCount = 0;
+            groups = 0;
+
+            //the string table and the groups; granularity etc. follow the groups
+            pb.reset(data, dataOff, dataLen);
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1:
+                    stringTable();
+                    break;
+                case 2:
+                    if (groups == groupOff.length) {
+                        groupOff = Arrays.copyOf(groupOff, groups*2);
+                        groupLen = Arrays.copyOf(groupLen, groups*2);
+                    }
+                    groupLen[groups] = pb.length();
+                    groupOff[groups++] = pb.pos;
+                    pb.pos += groupLen[groups - 1];
+                    break;
+                case 17:
+                    granularity = pb.varint();
+                    break;
+                case 18:
+                    dateGranularity = pb.varint();
+                    break;
+                case 19:
+                    latOffset = pb.varint();
+                    break;
+                case 20:
+                    lonOffset = pb.varint();
+                    break;
+                default:
+                    pb.skip();
+                }
+            }
+
+            for (int g = 0; g < groups; g++) {
+                pb.reset(data, groupOff[g], groupLen[g]);
+
+                while (pb.next()) {
+                    if (pb.wireType != ProtoReader.BYTES || pb.field < 1 || pb.field > 4) {
+                        pb.skip();
+                        continue;
+                    }
+                    int outer = pb.enter();
+
+                    switch (pb.field) {
+                    case 1:
+                        node();
+                        break;
+                    case 2:
+                        denseNodes();
+                        break;
+                    case 3:
+                        way();
+                        break;
+                    case 4:
+                        relation();
+                        break;
+                    }
+                    pb.leave(outer);
+                }
+            }
+            this.block = null;
+        }
+
+        /**
+         * blob: unpack a Blob into data[dataOff, dataOff + dataLen)
+         * @param blob
+         * @throws IOException
+         * @throws DataFormatException
+         */
+        private void blob(byte[] blob) throws IOException, DataFormatException {
+            int rawSize = -1, zlibOff = -1, zlibLen = 0;
+
+            data = null;
+            pb.reset(blob, 0, blob.length);
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1:
+                    dataLen = pb.length();
+                    dataOff = pb.pos;
+                    data = blob;
+                    pb.pos += dataLen;
+                    break;
+                case 2:
+                    rawSize = (int)pb.varint();
+                    break;
+                case 3:
+                    zlibLen = pb.length();
+                    zlibOff = pb.pos;
+                    pb.pos += zlibLen;
+                    break;
+                case 4: case 6: case 7:
+                    throw new IOException("unsupported PBF blob compression (field " + pb.field + ")");
+                default:
+                    pb.skip();
+                }
+            }
+            if (data != null) return;
+
+            if (zlibOff < 0 || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+                throw new IOException("invalid PBF blob");
+            }
+            if (raw.length < rawSize) {
+                raw = new byte[Math.max(rawSize, raw.length*2)];
+            }
+
+            inflater.reset();
+            inflater.setInput(blob, zlibOff, zlibLen);
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int r = inflater.inflate(raw, n, rawSize - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += r;
+            }
+            if (n != rawSize) {
+                throw new IOException("truncated zlib data in PBF blob");
+            }
+            data = raw;
+            dataOff = 0;
+            dataLen = rawSize;
+        }
+
+        private void stringTable() throws IOException {
+            int outer = pb.enter();
+
+            while (pb.next()) {
+                if (pb.field == 1) {
+                    if (strCount == strOff.length) {
+                        strOff = Arrays.copyOf(strOff, strCount*2);
+                        strLen = Arrays.copyOf(strLen, strCount*2);
+                        escaped = Arrays.copyOf(escaped, strCount*2);
+                        roles = Arrays.copyOf(roles, strCount*2);
+                    }
+                    strLen[strCount] = pb.length();
+                    strOff[strCount] = pb.pos;
+                    escaped[strCount] = null;
+                    roles[strCount] = null;
+                    strCount++;
+                    pb.pos += strLen[strCount - 1];
+                }
+                else {
+                    pb.skip();
+                }
+            }
+            pb.leave(outer);
+        }
+
+        /**
+         * read: read a packed or a single value of a repeated field
+         * @param list
+         * @param zigzag - sint32/sint64
+         * @param delta - delta coded
+         * @throws IOException
+         */
+        private void read(LongList list, boolean zigzag, boolean delta) throws IOException {
+            if (pb.wireType == ProtoReader.BYTES) {
+                int outer = pb.enter();
+                while (pb.pos < pb.limit) {
+                    long v = zigzag ? pb.sint() : pb.varint();
+                    list.add(delta ? list.last() + v : v);
+                }
+                pb.leave(outer);
+            }
+            else {
+                long v = zigzag ? pb.sint() : pb.varint();
+                list.add(delta ? list.last() + v : v);
+            }
+        }
+
+        private void readInfo() throws IOException {
+            int outer = pb.enter();
+
+            hasInfo = true;
+            version = -1;
+            timestamp = changeset = 0;
+            uid = userSid = -1;
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: version = pb.varint(); break;
+                case 2: timestamp = pb.varint(); break;
+                case 3: changeset = pb.varint(); break;
+                case 4: uid = (int)pb.varint(); break;
+                case 5: userSid = pb.varint(); break;
+                default: pb.skip();
+                }
+            }
+            pb.leave(outer);
+        }
+
+        private void node() throws Exception {
+            long id = 0, lat = 0, lon = 0;
+            keys.n = vals.n = 0;
+            hasInfo = false;
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: id = pb.sint(); break;
+                case 2: read(keys, false, false); break;
+                case 3: read(vals, false, false); break;
+                case 4: readInfo(); break;
+                case 8: lat = pb.sint(); break;
+                case 9: lon = pb.sint(); break;
+                default: pb.skip();
+                }
+            }
+            node(id, lat, lon, keys.a, vals.a, 0, keys.n);
+        }
+
+        private void denseNodes() throws Exception {
+            ids.n = lats.n = lons.n = keys.n = 0;
+            versions.n = timestamps.n = changesets.n = uids.n = userSids.n = 0;
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: read(ids, true, true); break;
+                case 5: denseInfo(); break;
+                case 8: read(lats, true, true); break;
+                case 9: read(lons, true, true); break;
+                case 10: read(keys, false, false); break;
+                default: pb.skip();
+                }
+            }
+
+            //keys_vals: key, value, ..., 0 for each node
+            int kv = 0;
+
+            for (int i = 0; i < ids.n; i++) {
+                int tags = kv;
+                while (kv < keys.n && keys.a[kv] != 0) kv += 2;
+
+                hasInfo = i < versions.n;
+                if (hasInfo) {
+                    version = versions.a[i];
+                    timestamp = i < timestamps.n ? timestamps.a[i] : 0;
+                    changeset = i < changesets.n ? changesets.a[i] : 0;
+                    uid = i < uids.n ? uids.a[i] : -1;
+                    userSid = i < userSids.n ? userSids.a[i] : -1;
+                }
+                node(ids.a[i], lats.a[i], lons.a[i], keys.a, null, tags, kv);
+                kv++;
+            }
+        }
+
+        private void denseInfo() throws IOException {
+            int outer = pb.enter();
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: read(versions, false, false); break;
+                case 2: read(timestamps, true, true); break;
+                case 3: read(changesets, true, true); break;
+                case 4: read(uids, true, true); break;
+                case 5: read(userSids, true, true); break;
+                default: pb.skip();
+                }
+            }
+            pb.leave(outer);
+        }
+
+        /**
+         * node: emit the lines of a node
+         * @param id
+         * @param lat - in granularity units
+         * @param lon
+         * @param k - keys, or keys and values alternating if v is null
+         * @param v - values
+         * @param from - first tag in k
+         * @param to - end of the tags in k
+         * @throws Exception
+         */
+        private void node(long id, long lat, long lon, long[] k, long[] v, int from, int to) throws Exception {
+            boolean tags = from < to;
+
+            len = 0;
+            ascii("  <node id=\"");
+            number(id);
+            ascii("\"");
+            info();
+            ascii(" lat=\"");
+            int latStart = len;
+            coordinate(latOffset + granularity * lat);
+            int latEnd = len;
+            ascii("\" lon=\"");
+            int lonStart = len;
+            coordinate(lonOffset + granularity * lon);
+            int lonEnd = len;
+            ascii(tags ? "\">" : "\"/>");
+
+            int e = emit(XmlScanner.NODE, 2);
+            batch.id[e] = id;
+            batch.tn[e] = NodeToTileNumber.tileNumber(Attributes.parseFloat(line, latStart, latEnd),
+                    Attributes.parseFloat(line, lonStart, lonEnd));
+
+            if (tags) {
+                if (v == null) {
+                    for (int i = from; i < to; i += 2) tag((int)k[i], (int)k[i + 1]);
+                }
+                else {
+                    for (int i = from; i < to; i++) tag((int)k[i], (int)v[i]);
+                }
+                len = 0;
+                ascii("  </node>");
+                emit(XmlScanner.NODE_END, 2);
+            }
+        }
+
+        private void way() throws Exception {
+            long id = 0;
+            keys.n = vals.n = refs.n = 0;
+            hasInfo = false;
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: id = pb.varint(); break;
+                case 2: read(keys, false, false); break;
+                case 3: read(vals, false, false); break;
+                case 4: readInfo(); break;
+                case 8: read(refs, true, true); break;
+                default: pb.skip();
+                }
+            }
+
+            len = 0;
+            ascii("  <way id=\"");
+            number(id);
+            ascii("\"");
+            info();
+            ascii(">");
+            int e = emit(XmlScanner.WAY, 2);
+            batch.id[e] = id;
+
+            //tile numbers of remote nodes, see PbfTileWriter
+            int tnTag = -1;
+            tns.n = 0;
+            for (int i = 0; i < keys.n; i++) {
+                if (isString((int)keys.a[i], PbfTileWriter.TN_KEY)) {
+                    tnTag = i;
+                    tns((int)vals.a[i], refs.n);
+                }
+            }
+
+            for (int i = 0; i < refs.n; i++) {
+                len = 0;
+                ascii("    <nd ref=\"");
+                number(refs.a[i]);
+                if (i < tns.n && tns.a[i] != 0) {
+                    ascii("\" tn=\"");
+                    number(tns.a[i]);
+                }
+                ascii("\"/>");
+                e = emit(XmlScanner.ND, 4);
+                batch.id[e] = refs.a[i];
+            }
+            for (int i = 0; i < keys.n; i++) {
+                if (i != tnTag) tag((int)keys.a[i], (int)vals.a[i]);
+            }
+            len = 0;
+            ascii("  </way>");
+            emit(XmlScanner.WAY_END, 2);
+        }
+
+        /**
+         * tns: read the "index:tn" pairs of the TN_KEY tag
+         * @param value - string table index of the tag value
+         * @param n - number of refs
+         * @throws IOException
+         */
+        private void tns(int value, int n) throws IOException {
+            if (value < 0 || value >= strCount) {
+                throw new IOException("invalid PBF string table index: " + value);
+            }
+            while (tns.n < n) tns.add(0);
+
+            int i = strOff[value], end = i + strLen[value];
+            while (i < end) {
+                int colon = i, comma;
+                while (colon < end && data[colon] != ':') colon++;
+                comma = colon;
+                while (comma < end && data[comma] != ',') comma++;
+                if (colon >= comma) throw new IOException("invalid " + PbfTileWriter.TN_KEY + " tag");
+
+                long index = Attributes.parseLong(data, i, colon);
+                if (index >= 0 && index < n) {
+                    tns.a[(int)index] = Attributes.parseLong(data, colon + 1, comma);
+                }
+                i = comma + 1;
+            }
+        }
+
+        private boolean isString(int i, String s) {
+            return i >= 0 && i < strCount && Attributes.match(data, strOff[i], strOff[i] + strLen[i], s);
+        }
+
+        private void relation() throws Exception {
+            long id = 0;
+            keys.n = vals.n = refs.n = types.n = roleSids.n = 0;
+            hasInfo = false;
+
+            while (pb.next()) {
+                switch (pb.field) {
+                case 1: id = pb.varint(); break;
+                case 2: read(keys, false, false); break;
+                case 3: read(vals, false, false); break;
+                case 4: readInfo(); break;
+                case 8: read(roleSids, false, false); break;
+                case 9: read(refs, true, true); break;      //memids
+                case 10: read(types, false, false); break;
+                default: pb.skip();
+                }
+            }
+
+            len = 0;
+            ascii("  <relation id=\"");
+            number(id);
+            ascii("\"");
+            info();
+            ascii(">");
+            int e = emit(XmlScanner.RELATION, 2);
+            batch.id[e] = id;
+
+            for (int i = 0; i < refs.n; i++) {
+                String type = types.a[i] == 0 ? Attributes.NODE : types.a[i] == 1 ? Attributes.WAY : Attributes.RELATION;
+                int role = (int)roleSids.a[i];
+
+                len = 0;
+                ascii("    <member type=\"");
+                ascii(type);
+                ascii("\" ref=\"");
+                number(refs.a[i]);
+                ascii("\" role=\"");
+                string(role);
+                ascii("\"/>");
+                e = emit(XmlScanner.MEMBER, 4);
+                batch.id[e] = refs.a[i];
+                batch.type[e] = type;
+                batch.role[e] = role(role);
+            }
+            for (int i = 0; i < keys.n; i++) {
+                tag((int)keys.a[i], (int)vals.a[i]);
+            }
+            len = 0;
+            ascii("  </relation>");
+            emit(XmlScanner.RELATION_END, 2);
+        }
+
+        /**
+         * info: append the metadata attributes of the current entity
+         * @throws IOException
+         */
+        private void info() throws IOException {
+            if (!hasInfo) return;
+
+            if (version >= 0) {
+                ascii(" version=\"");
+                number(version);
+                ascii("\"");
+            }
+            if (timestamp != 0) {
+                ascii(" timestamp=\"");
+                timestamp(timestamp * dateGranularity);
+                ascii("\"");
+            }
+            if (uid >= 0) {
+                ascii(" uid=\"");
+                number(uid);
+                ascii("\"");
+            }
+            if (userSid > 0 && userSid < strCount) {
+                ascii(" user=\"");
+                string((int)userSid);
+                ascii("\"");
+            }
+            if (changeset != 0) {
+                ascii(" changeset=\"");
+                number(changeset);
+                ascii("\"");
+            }
+        }
+
+        private void tag(int key, int value) throws Exception {
+            len = 0;
+            ascii("    <tag k=\"");
+            string(key);
+            ascii("\" v=\"");
+            string(value);
+            ascii("\"/>");
+            emit(XmlScanner.TAG, 4);
+        }
+
+        /**
+         * emit: add the line to the batches of the block
+         * @param kind
+         * @param indent
+         * @return the element in the current batch
+         */
+        private int emit(int kind, int indent) {
+            if (batch == null || !batch.add(kind, line, 0, len, indent)) {
+                batch = free.poll();
+                if (batch == null) {
+                    batch = new ElementBatch(ElementBatch.MAX_ELEMENTS, ElementBatch.MAX_BYTES);
+                }
+                batch.clear();
+                block.batches.add(batch);
+                batch.add(kind, line, 0, len, indent);
+            }
+            return batch.count - 1;
+        }
+
+        private void reserve(int n) {
+            if (len + n > line.length) {
+                line = Arrays.copyOf(line, Math.max(len + n, line.length*2));
+            }
+        }
+
+        private void ascii(String s) {
+            reserve(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                line[len++] = (byte)s.charAt(i);
+            }
+        }
+
+        private void number(long v) {
+            reserve(20);
+            if (v < 0) {
+                line[len++] = '-';
+                v = -v;
+            }
+            int start = len;
+            do {
+                line[len++] = (byte)('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+
+            //reverse the digits
+            for (int i = start, j = len - 1; i < j; i++, j--) {
+                byte t = line[i];
+                line[i] = line[j];
+                line[j] = t;
+            }
+        }
+
+        /**
+         * coordinate: append a coordinate with 7 decimals
+         * @param nano - in nanodegrees
+         */
+        private void coordinate(long nano) {
+            long units = Math.round(nano / 100.0);
+
+            reserve(16);
+            if (units < 0) {
+                line[len++] = '-';
+                units = -units;
+            }
+            number(units / 10000000);
+            line[len++] = '.';
+            long fraction = units % 10000000;
+            for (long d = 1000000; d > 0; d /= 10) {
+                line[len++] = (byte)('0' + (fraction / d) % 10);
+            }
+        }
+
+        /**
+         * timestamp: append a time in ISO 8601 format, e.g. 2011-09-22T14:47:00Z
+         * @param ms - milliseconds since 1970-01-01
+         */
+        private void timestamp(long ms) {
+            long seconds = Math.floorDiv(ms, 1000);
+            long days = Math.floorDiv(seconds, 86400);
+            long s = seconds - days*86400;
+
+            //civil date from days since 1970-01-01
+            long z = days + 719468;
+            long era = Math.floorDiv(z, 146097);
+            long doe = z - era*146097;
+            long yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+            long doy = doe - (365*yoe + yoe/4 - yoe/100);
+            long mp = (5*doy + 2) / 153;
+            long day = doy - (153*mp + 2)/5 + 1;
+            long month = mp < 10 ? mp + 3 : mp - 9;
+            long year = yoe + era*400 + (month <= 2 ? 1 : 0);
+
+            reserve(24);
+            number(year);
+            line[len++] = '-';
+            twoDigits(month);
+            line[len++] = '-';
+            twoDigits(day);
+            line[len++] = 'T';
+            twoDigits(s / 3600);
+            line[len++] = ':';
+            twoDigits(s / 60 % 60);
+            line[len++] = ':';
+            twoDigits(s % 60);
+            line[len++] = 'Z';
+        }
+
+        private void twoDigits(long v) {
+            line[len++] = (byte)('0' + v / 10);
+            line[len++] = (byte)('0' + v % 10);
+        }
+
+        /**
+         * string: append an entry of the string table, escaped for XML
+         * @param i
+         * @throws IOException
+         */
+        private void string(int i) throws IOException {
+            byte[] b = escaped(i);
+            reserve(b.length);
+            System.arraycopy(b, 0, line, len, b.length);
+            len += b.length;
+        }
+
+        private byte[] escaped(int i) throws IOException {
+            if (i < 0 || i >= strCount) {
+                throw new IOException("invalid PBF string table index: " + i);
+            }
+            if (escaped[i] == null) {
+                escaped[i] = escape(data, strOff[i], strLen[i]);
+            }
+            return escaped[i];
+        }
+
+        /**
+         * role: an entry of the string table as the role attribute of a member
+         * @param i
+         * @return
+         * @throws IOException
+         */
+        private String role(int i) throws IOException {
+            byte[] b = escaped(i);
+
+            if (roles[i] == null) {
+                roles[i] = Attributes.string(b, 0, b.length);
+            }
+            return roles[i];
+        }
+    }
+
+    /**
+     * escape: escape bytes for an XML attribute value
+     * @param b
+     * @param off
+     * @param len
+     * @return
+     */
+    static byte[] escape(byte[] b, int off, int len) {
+        int n = len;
+
+        for (int i = off; i < off + len; i++) {
+            switch (b[i]) {
+            case '&': n += 4; break;
+            case '<': case '>': n += 3; break;
+            case '"': n += 5; break;
+            case '\t': n += 3; break;
+            case '\n': case '\r': n += 4; break;
+            }
+        }
+
+        byte[] out = new byte[n];
+        int j = 0;
+
+        for (int i = off; i < off + len; i++) {
+            String entity;
+
+            switch (b[i]) {
+            case '&': entity = "&amp;"; break;
+            case '<': entity = "&lt;"; break;
+            case '>': entity = "&gt;"; break;
+            case '"': entity = "&quot;"; break;
+            case '\t': entity = "&#9;"; break;
+            case '\n': entity = "&#10;"; break;
+            case '\r': entity = "&#13;"; break;
+            default:
+                out[j++] = b[i];
+                continue;
+            }
+            for (int k = 0; k < entity.length(); k++) {
+                out[j++] = (byte)entity.charAt(k);
+            }
+        }
+        return out;
+    }
+}
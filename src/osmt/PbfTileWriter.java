@@ -0,0 +1,639 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a tile as OSM PBF. The tile's XML is written to this stream like to
+ * any other tile writer; complete tags are converted on the fly into PBF
+ * entities and written in zlib compressed blocks of up to MAX_ENTITIES
+ * entities, with dense nodes, delta coded IDs, refs and coordinates, and a
+ * string table per block.
+ *
+ * The tile numbers Split adds to the <nd>s of remote nodes have no place in
+ * PBF; they are stored in the reserved way tag TN_KEY as "index:tn" pairs,
+ * e.g. "0:32491,17:32492", and turned back into tn attributes by PbfReader.
+ */
+public class PbfTileWriter extends OutputStream {
+    static final String TN_KEY = "osmt:tn";
+    static final int MAX_ENTITIES = 8000;
+
+    //PrimitiveGroup fields
+    static final int DENSE = 2;
+    static final int WAYS = 3;
+    static final int RELATIONS = 4;
+
+    private OutputStream out;
+    private Deflater deflater = new Deflater();
+    private byte[] compressed = new byte[1 << 16];
+
+    //XML not converted yet
+    private byte[] buf = new byte[1 << 16];
+    private int pos, limit;
+
+    private boolean headerWritten;
+
+    //the current block
+    private HashMap<String, Integer> strings = new HashMap<String, Integer>();
+    private ArrayList<byte[]> table = new ArrayList<byte[]>();
+    private int group, entities;
+    private ProtoWriter groupData = new ProtoWriter();
+    private LongList ids = new LongList(), lats = new LongList(), lons = new LongList();
+    private LongList keysVals = new LongList();
+    private LongList versions = new LongList(), timestamps = new LongList();
+    private LongList changesets = new LongList(), uids = new LongList();
+    private LongList userSids = new LongList();
+    private boolean denseTags, denseInfo;
+
+    //the current entity
+    private long id, lat, lon;
+    private long version, timestamp, changeset, uid, userSid;
+    private boolean hasInfo;
+    private LongList keys = new LongList(), vals = new LongList();
+    private LongList refs = new LongList(), types = new LongList();
+    private LongList roles = new LongList();
+    private StringBuilder tns = new StringBuilder();
+
+    //attributes of the current tag
+    private long ref, tn;
+    private boolean hasTn;
+    private int type, key, value, role;
+    private long[] bbox;
+
+    private ProtoWriter entity = new ProtoWriter(), info = new ProtoWriter();
+    private ProtoWriter block = new ProtoWriter(), message = new ProtoWriter();
+
+    /**
+     * Constructor
+     * @param out - the tile file
+     */
+    public PbfTileWriter(OutputStream out) {
+        this.out = out;
+        table.add(new byte[0]);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (limit + len > buf.length) {
+            //keep the unconverted rest only
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            if (limit + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(limit + len, buf.length*2));
+            }
+        }
+        System.arraycopy(b, off, buf, limit, len);
+        limit += len;
+        convert();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            convert();
+            flushBlock();
+            if (!headerWritten) header();
+        } finally {
+            out.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * convert: convert the complete tags in the buffer
+     * @throws IOException
+     */
+    private void convert() throws IOException {
+        while (true) {
+            int lt = pos;
+            while (lt < limit && buf[lt] != '<') lt++;
+            if (lt == limit) {
+                pos = limit;
+                return;
+            }
+
+            //find the end of the tag, skipping quoted attribute values
+            int j = lt + 1;
+            byte quote = 0;
+            while (j < limit) {
+                byte c = buf[j];
+
+                if (quote != 0) {
+                    if (c == quote) quote = 0;
+                }
+                else if (c == '"' || c == '\'') {
+                    quote = c;
+                }
+                else if (c == '>') {
+                    break;
+                }
+                j++;
+            }
+            if (j == limit) {
+                pos = lt;
+                return;
+            }
+            pos = j + 1;
+
+            if (buf[lt + 1] != '?' && buf[lt + 1] != '!') {
+                element(XmlScanner.classify(buf, lt + 1, j), lt, j + 1, buf[j - 1] == '/');
+            }
+        }
+    }
+
+    /**
+     * element: add an element to the current entity
+     * @param kind
+     * @param start
+     * @param end
+     * @param empty - an empty-element tag
+     * @throws IOException
+     */
+    private void element(int kind, int start, int end, boolean empty) throws IOException {
+        switch (kind) {
+        case XmlScanner.BOUNDS:
+            bbox = new long[4];
+            attributes(start, end);
+            if (!headerWritten) header();
+            break;
+        case XmlScanner.NODE:
+        case XmlScanner.WAY:
+        case XmlScanner.RELATION:
+            //a group holds one kind of entities only; the strings of the
+            //entity go to the table of the block it ends up in
+            int g = kind == XmlScanner.NODE ? DENSE : kind == XmlScanner.WAY ? WAYS : RELATIONS;
+
+            if (!headerWritten) header();
+            if (g != group || entities == MAX_ENTITIES) {
+                flushBlock();
+                group = g;
+            }
+            id = lat = lon = 0;
+            version = -1;
+            timestamp = changeset = 0;
+            uid = -1;
+            userSid = 0;
+            hasInfo = false;
+            keys.n = vals.n = refs.n = types.n = roles.n = 0;
+            tns.setLength(0);
+            attributes(start, end);
+
+            if (empty) end(kind);
+            break;
+        case XmlScanner.NODE_END:
+            end(XmlScanner.NODE);
+            break;
+        case XmlScanner.WAY_END:
+            end(XmlScanner.WAY);
+            break;
+        case XmlScanner.RELATION_END:
+            end(XmlScanner.RELATION);
+            break;
+        case XmlScanner.ND:
+            hasTn = false;
+            attributes(start, end);
+            if (hasTn) {
+                if (tns.length() > 0) tns.append(',');
+                tns.append(refs.n).append(':').append(tn);
+            }
+            refs.add(ref);
+            break;
+        case XmlScanner.MEMBER:
+            type = 0;
+            role = 0;
+            attributes(start, end);
+            refs.add(ref);
+            types.add(type);
+            roles.add(role);
+            break;
+        case XmlScanner.TAG:
+            key = value = 0;
+            attributes(start, end);
+            keys.add(key);
+            vals.add(value);
+            break;
+        }
+    }
+
+    /**
+     * attributes: parse the attributes of a tag, as in Attributes.parse()
+     * @param start
+     * @param end
+     */
+    private void attributes(int start, int end) {
+        byte[] b = buf;
+        int i = start;
+
+        //skip element name
+        while (i < end && !Attributes.isSpace(b[i]) && b[i] != '>') i++;
+
+        while (i < end) {
+            while (i < end && Attributes.isSpace(b[i])) i++;
+            if (i >= end || b[i] == '/' || b[i] == '>') break;
+
+            int keyStart = i;
+            while (i < end && b[i] != '=' && !Attributes.isSpace(b[i])) i++;
+            int keyEnd = i;
+
+            while (i < end && Attributes.isSpace(b[i])) i++;
+            if (i >= end || b[i] != '=') continue;
+            i++;
+            while (i < end && Attributes.isSpace(b[i])) i++;
+            if (i >= end) break;
+
+            byte quote = b[i];
+            if (quote != '"' && quote != '\'') continue;
+            int valueStart = ++i;
+            while (i < end && b[i] != quote) i++;
+            int valueEnd = i++;
+
+            attribute(b, keyStart, keyEnd, valueStart, valueEnd);
+        }
+    }
+
+    private void attribute(byte[] b, int k, int kEnd, int start, int end) {
+        switch (kEnd - k) {
+        case 1:
+            if (b[k] == 'k') key = string(b, start, end);
+            else if (b[k] == 'v') value = string(b, start, end);
+            break;
+        case 2:
+            if (Attributes.match(b, k, "id")) id = Attributes.parseLong(b, start, end);
+            else if (Attributes.match(b, k, "tn")) {
+                tn = Attributes.parseLong(b, start, end);
+                hasTn = true;
+            }
+            break;
+        case 3:
+            if (Attributes.match(b, k, "ref")) ref = Attributes.parseLong(b, start, end);
+            else if (Attributes.match(b, k, "lat")) lat = fixed(b, start, end, 7);
+            else if (Attributes.match(b, k, "lon")) lon = fixed(b, start, end, 7);
+            else if (Attributes.match(b, k, "uid")) {
+                uid = Attributes.parseLong(b, start, end);
+                hasInfo = true;
+            }
+            break;
+        case 4:
+            if (Attributes.match(b, k, "type")) {
+                type = Attributes.match(b, start, end, Attributes.NODE) ? 0 : Attributes.match(b, start, end, Attributes.WAY) ? 1 : 2;
+            }
+            else if (Attributes.match(b, k, "role")) role = string(b, start, end);
+            else if (Attributes.match(b, k, "user")) {
+                userSid = string(b, start, end);
+                hasInfo = true;
+            }
+            break;
+        case 6:
+            if (bbox == null) break;
+            if (Attributes.match(b, k, "minlat")) bbox[0] = fixed(b, start, end, 9);
+            else if (Attributes.match(b, k, "minlon")) bbox[1] = fixed(b, start, end, 9);
+            else if (Attributes.match(b, k, "maxlat")) bbox[2] = fixed(b, start, end, 9);
+            else if (Attributes.match(b, k, "maxlon")) bbox[3] = fixed(b, start, end, 9);
+            break;
+        case 7:
+            if (Attributes.match(b, k, "version")) {
+                version = Attributes.parseLong(b, start, end);
+                hasInfo = true;
+            }
+            break;
+        case 9:
+            if (Attributes.match(b, k, "timestamp")) {
+                timestamp = timestamp(b, start, end);
+                hasInfo = true;
+            }
+            else if (Attributes.match(b, k, "changeset")) {
+                changeset = Attributes.parseLong(b, start, end);
+                hasInfo = true;
+            }
+            break;
+        }
+    }
+
+    /**
+     * end: add the current entity to the block
+     * @param kind - XmlScanner.NODE, WAY or RELATION
+     * @throws IOException
+     */
+    private void end(int kind) throws IOException {
+        entities++;
+
+        if (kind == XmlScanner.NODE) {
+            ids.add(id);
+            lats.add(lat);
+            lons.add(lon);
+            for (int i = 0; i < keys.n; i++) {
+                keysVals.add(keys.a[i]);
+                keysVals.add(vals.a[i]);
+            }
+            keysVals.add(0);
+            denseTags |= keys.n > 0;
+
+            versions.add(version);
+            timestamps.add(timestamp);
+            changesets.add(changeset);
+            uids.add(uid);
+            userSids.add(userSid);
+            denseInfo |= hasInfo;
+            return;
+        }
+
+        if (kind == XmlScanner.WAY && tns.length() > 0) {
+            keys.add(string(TN_KEY));
+            vals.add(string(tns.toString()));
+        }
+
+        entity.reset();
+        entity.varint(1, id);
+        entity.packed(2, keys.a, keys.n, false, false);
+        entity.packed(3, vals.a, vals.n, false, false);
+        if (hasInfo) {
+            info.reset();
+            if (version >= 0) info.varint(1, version);
+            if (timestamp != 0) info.varint(2, timestamp);
+            if (changeset != 0) info.varint(3, changeset);
+            if (uid >= 0) info.varint(4, uid);
+            if (userSid > 0) info.varint(5, userSid);
+            entity.message(4, info);
+        }
+        if (kind == XmlScanner.WAY) {
+            entity.packed(8, refs.a, refs.n, true, true);
+        }
+        else {
+            entity.packed(8, roles.a, roles.n, false, false);
+            entity.packed(9, refs.a, refs.n, true, true);
+            entity.packed(10, types.a, types.n, false, false);
+        }
+        groupData.message(group, entity);
+    }
+
+    /**
+     * flushBlock: write the current block as an OSMData blob
+     * @throws IOException
+     */
+    private void flushBlock() throws IOException {
+        if (entities == 0) return;
+
+        if (group == DENSE) {
+            entity.reset();
+            entity.packed(1, ids.a, ids.n, true, true);
+            if (denseInfo) {
+                info.reset();
+                info.packed(1, versions.a, versions.n, false, false);
+                info.packed(2, timestamps.a, timestamps.n, true, true);
+                info.packed(3, changesets.a, changesets.n, true, true);
+                info.packed(4, uids.a, uids.n, true, true);
+                info.packed(5, userSids.a, userSids.n, true, true);
+                entity.message(5, info);
+            }
+            entity.packed(8, lats.a, lats.n, true, true);
+            entity.packed(9, lons.a, lons.n, true, true);
+            if (denseTags) {
+                entity.packed(10, keysVals.a, keysVals.n, false, false);
+            }
+            groupData.message(DENSE, entity);
+        }
+
+        //PrimitiveBlock: string table and the group
+        message.reset();
+        for (byte[] s : table) {
+            message.bytes(1, s, 0, s.length);
+        }
+        block.reset();
+        block.message(1, message);
+        block.message(2, groupData);
+        blob("OSMData", block);
+
+        strings.clear();
+        table.clear();
+        table.add(new byte[0]);
+        groupData.reset();
+        ids.n = lats.n = lons.n = keysVals.n = 0;
+        versions.n = timestamps.n = changesets.n = uids.n = userSids.n = 0;
+        denseTags = denseInfo = false;
+        entities = 0;
+    }
+
+    /**
+     * header: write the OSMHeader blob, with the bounds if known
+     * @throws IOException
+     */
+    private void header() throws IOException {
+        block.reset();
+        if (bbox != null) {
+            message.reset();
+            message.sint(1, bbox[1]);
+            message.sint(2, bbox[3]);
+            message.sint(3, bbox[2]);
+            message.sint(4, bbox[0]);
+            block.message(1, message);
+        }
+        byte[] schema = "OsmSchema-V0.6".getBytes(StandardCharsets.UTF_8);
+        byte[] dense = "DenseNodes".getBytes(StandardCharsets.UTF_8);
+        byte[] program = "osmt".getBytes(StandardCharsets.UTF_8);
+        block.bytes(4, schema, 0, schema.length);
+        block.bytes(4, dense, 0, dense.length);
+        block.bytes(16, program, 0, program.length);
+        blob("OSMHeader", block);
+        headerWritten = true;
+    }
+
+    /**
+     * blob: write a zlib compressed blob with its header
+     * @param type
+     * @param data
+     * @throws IOException
+     */
+    private void blob(String type, ProtoWriter data) throws IOException {
+        deflater.reset();
+        deflater.setInput(data.buf, 0, data.len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == compressed.length) compressed = Arrays.copyOf(compressed, n*2);
+            n += deflater.deflate(compressed, n, compressed.length - n);
+        }
+
+        ProtoWriter blob = new ProtoWriter();
+        blob.varint(2, data.len);
+        blob.bytes(3, compressed, 0, n);
+
+        ProtoWriter header = new ProtoWriter();
+        byte[] t = type.getBytes(StandardCharsets.UTF_8);
+        header.bytes(1, t, 0, t.length);
+        header.varint(3, blob.len);
+
+        out.write(header.len >>> 24);
+        out.write(header.len >>> 16);
+        out.write(header.len >>> 8);
+        out.write(header.len);
+        out.write(header.buf, 0, header.len);
+        out.write(blob.buf, 0, blob.len);
+    }
+
+    /**
+     * string: the index of an XML attribute value in the string table
+     * @param b
+     * @param start
+     * @param end
+     * @return
+     */
+    private int string(byte[] b, int start, int end) {
+        return string(unescape(b, start, end));
+    }
+
+    private int string(String s) {
+        Integer i = strings.get(s);
+
+        if (i == null) {
+            i = table.size();
+            strings.put(s, i);
+            table.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+        return i;
+    }
+
+    /**
+     * unescape: decode an XML attribute value
+     * @param b
+     * @param start
+     * @param end
+     * @return
+     */
+    static String unescape(byte[] b, int start, int end) {
+        int amp = start;
+        while (amp < end && b[amp] != '&') amp++;
+        if (amp == end) return Attributes.string(b, start, end);
+
+        StringBuilder s = new StringBuilder(Attributes.string(b, start, amp));
+        int i = amp;
+
+        while (i < end) {
+            int semi = i + 1;
+            while (semi < end && b[semi] != ';' && b[semi] != '&') semi++;
+
+            if (b[i] != '&' || semi == end || b[semi] != ';') {
+                //not an entity: copy up to the next '&'
+                int next = i + 1;
+                while (next < end && b[next] != '&') next++;
+                s.append(Attributes.string(b, i, next));
+                i = next;
+                continue;
+            }
+            String name = Attributes.string(b, i + 1, semi);
+
+            if (name.equals("amp")) s.append('&');
+            else if (name.equals("lt")) s.append('<');
+            else if (name.equals("gt")) s.append('>');
+            else if (name.equals("quot")) s.append('"');
+            else if (name.equals("apos")) s.append('\'');
+            else if (name.startsWith("#x") || name.startsWith("#X")) s.appendCodePoint(Integer.parseInt(name.substring(2), 16));
+            else if (name.startsWith("#")) s.appendCodePoint(Integer.parseInt(name.substring(1)));
+            else s.append('&').append(name).append(';');
+
+            i = semi + 1;
+        }
+        return s.toString();
+    }
+
+    /**
+     * fixed: parse a decimal number as a fixed point number
+     * @param b
+     * @param start
+     * @param end
+     * @param decimals
+     * @return the number times 10^decimals, rounded
+     */
+    static long fixed(byte[] b, int start, int end, int decimals) {
+        int i = start;
+        boolean negative = i < end && b[i] == '-';
+        if (negative) i++;
+
+        long result = 0;
+        int scale = -1;
+
+        for (; i < end; i++) {
+            byte c = b[i];
+
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            }
+            else if (c >= '0' && c <= '9') {
+                if (scale == decimals) {
+                    //round at the first digit we do not keep
+                    if (c >= '5') result++;
+                    break;
+                }
+                result = result*10 + (c - '0');
+                if (scale >= 0) scale++;
+            }
+            else {
+                return Math.round(Double.parseDouble(Attributes.string(b, start, end)) * Math.pow(10, decimals));
+            }
+        }
+        for (scale = Math.max(scale, 0); scale < decimals; scale++) {
+            result *= 10;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * timestamp: parse an ISO 8601 time, e.g. 2011-09-22T14:47:00Z
+     * @param b
+     * @param start
+     * @param end
+     * @return seconds since 1970-01-01, 0 if it is not a valid time
+     */
+    static long timestamp(byte[] b, int start, int end) {
+        if (end - start == 20 && b[start + 4] == '-' && b[start + 7] == '-' && b[start + 10] == 'T' && b[start + 19] == 'Z') {
+            try {
+                long year = Attributes.parseLong(b, start, start + 4);
+                long month = Attributes.parseLong(b, start + 5, start + 7);
+                long day = Attributes.parseLong(b, start + 8, start + 10);
+                long h = Attributes.parseLong(b, start + 11, start + 13);
+                long m = Attributes.parseLong(b, start + 14, start + 16);
+                long s = Attributes.parseLong(b, start + 17, start + 19);
+
+                //days since 1970-01-01 from the civil date
+                long y = month <= 2 ? year - 1 : year;
+                long era = Math.floorDiv(y, 400);
+                long yoe = y - era*400;
+                long doy = (153*(month > 2 ? month - 3 : month + 9) + 2)/5 + day - 1;
+                long doe = yoe*365 + yoe/4 - yoe/100 + doy;
+                long days = era*146097 + doe - 719468;
+
+                return days*86400 + h*3600 + m*60 + s;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        try {
+            return OffsetDateTime.parse(Attributes.string(b, start, end)).toEpochSecond();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
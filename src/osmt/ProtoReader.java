@@ -0,0 +1,173 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal decoder for the protocol buffers wire format, as used by PBF.
+ *
+ * The reader walks a byte array without creating objects. Embedded messages
+ * and packed fields are read in place: enter() limits the reader to the
+ * current length-delimited field, leave() continues after it.
+ *
+ *     while (pb.next()) {
+ *         switch (pb.field) {
+ *         case 1: id = pb.varint(); break;
+ *         case 2: int outer = pb.enter(); ... pb.leave(outer); break;
+ *         default: pb.skip();
+ *         }
+ *     }
+ */
+public class ProtoReader {
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int BYTES = 2;
+    static final int FIXED32 = 5;
+
+    public byte[] buf;
+    public int pos, limit;
+    public int field, wireType;     //of the current field
+
+    public ProtoReader() {
+    }
+
+    public ProtoReader(byte[] buf, int off, int len) {
+        reset(buf, off, len);
+    }
+
+    /**
+     * reset: read another message
+     * @param buf
+     * @param off
+     * @param len
+     */
+    public void reset(byte[] buf, int off, int len) {
+        this.buf = buf;
+        pos = off;
+        limit = off + len;
+    }
+
+    /**
+     * next: move to the next field
+     * @return false at the end of the message
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        if (pos >= limit) return false;
+
+        long key = varint();
+        field = (int)(key >>> 3);
+        wireType = (int)(key & 7);
+        return true;
+    }
+
+    /**
+     * varint: read a varint (int32, int64, uint32, uint64, bool, enum)
+     * @return
+     * @throws IOException
+     */
+    public long varint() throws IOException {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) throw new IOException("truncated varint");
+            byte b = buf[pos++];
+            result |= (long)(b & 0x7f) << shift;
+            if (b >= 0) return result;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * sint: read a zigzag encoded varint (sint32, sint64)
+     * @return
+     * @throws IOException
+     */
+    public long sint() throws IOException {
+        long v = varint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * length: read the length of a length-delimited field
+     * @return
+     * @throws IOException
+     */
+    public int length() throws IOException {
+        long len = varint();
+
+        if (len < 0 || len > limit - pos) throw new IOException("truncated field");
+        return (int)len;
+    }
+
+    /**
+     * enter: limit the reader to the current length-delimited field, e.g. an
+     * embedded message or packed values
+     * @return the outer limit, for leave()
+     * @throws IOException
+     */
+    public int enter() throws IOException {
+        int len = length();
+        int outer = limit;
+        limit = pos + len;
+        return outer;
+    }
+
+    /**
+     * leave: continue after the field entered with enter()
+     * @param outer
+     */
+    public void leave(int outer) {
+        pos = limit;
+        limit = outer;
+    }
+
+    /**
+     * string: read a length-delimited field as a String
+     * @return
+     * @throws IOException
+     */
+    public String string() throws IOException {
+        int len = length();
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    /**
+     * skip: skip the value of the current field
+     * @throws IOException
+     */
+    public void skip() throws IOException {
+        switch (wireType) {
+        case VARINT:
+            varint();
+            break;
+        case FIXED64:
+            pos += 8;
+            break;
+        case BYTES:
+            int len = length();
+            pos += len;
+            break;
+        case FIXED32:
+            pos += 4;
+            break;
+        default:
+            throw new IOException("unsupported wire type " + wireType);
+        }
+        if (pos > limit) throw new IOException("truncated field");
+    }
+}
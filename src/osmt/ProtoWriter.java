@@ -0,0 +1,139 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.util.Arrays;
+
+/**
+ * Minimal encoder for the protocol buffers wire format, the counterpart of
+ * ProtoReader. A message is written into a growable byte array; embedded
+ * messages are written into a ProtoWriter of their own and then appended with
+ * message(), as their length must precede them.
+ */
+public class ProtoWriter {
+    public byte[] buf = new byte[1024];
+    public int len;
+
+    /**
+     * reset: start a new message, keeping the buffer
+     */
+    public void reset() {
+        len = 0;
+    }
+
+    /**
+     * varint: write a varint field (int32, int64, uint32, uint64, bool, enum)
+     * @param field
+     * @param v
+     */
+    public void varint(int field, long v) {
+        key(field, ProtoReader.VARINT);
+        varint(v);
+    }
+
+    /**
+     * sint: write a zigzag encoded field (sint32, sint64)
+     * @param field
+     * @param v
+     */
+    public void sint(int field, long v) {
+        key(field, ProtoReader.VARINT);
+        varint(zigzag(v));
+    }
+
+    /**
+     * bytes: write a length-delimited field, e.g. a string
+     * @param field
+     * @param b
+     * @param off
+     * @param n
+     */
+    public void bytes(int field, byte[] b, int off, int n) {
+        key(field, ProtoReader.BYTES);
+        varint(n);
+        reserve(n);
+        System.arraycopy(b, off, buf, len, n);
+        len += n;
+    }
+
+    /**
+     * message: write an embedded message
+     * @param field
+     * @param m
+     */
+    public void message(int field, ProtoWriter m) {
+        bytes(field, m.buf, 0, m.len);
+    }
+
+    /**
+     * packed: write packed values
+     * @param field
+     * @param a
+     * @param n - number of values in a
+     * @param zigzag - sint32/sint64
+     * @param delta - delta code the values
+     */
+    public void packed(int field, long[] a, int n, boolean zigzag, boolean delta) {
+        if (n == 0) return;
+
+        //the length precedes the values, so count it first
+        int size = 0;
+        long last = 0;
+        for (int i = 0; i < n; i++) {
+            long v = delta ? a[i] - last : a[i];
+            last = a[i];
+            size += varintSize(zigzag ? zigzag(v) : v);
+        }
+
+        key(field, ProtoReader.BYTES);
+        varint(size);
+        last = 0;
+        for (int i = 0; i < n; i++) {
+            long v = delta ? a[i] - last : a[i];
+            last = a[i];
+            varint(zigzag ? zigzag(v) : v);
+        }
+    }
+
+    private void key(int field, int wireType) {
+        varint((long)field << 3 | wireType);
+    }
+
+    private void varint(long v) {
+        reserve(10);
+        while ((v & ~0x7fL) != 0) {
+            buf[len++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[len++] = (byte)v;
+    }
+
+    private static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7fL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private void reserve(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + n, buf.length*2));
+        }
+    }
+}
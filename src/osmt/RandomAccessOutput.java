@@ -0,0 +1,38 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output whose bytes can be read back while it is being written, e.g. to copy
+ * a node that was written to one tile into another tile.
+ */
+public abstract class RandomAccessOutput extends OutputStream {
+    /**
+     * position: number of bytes written so far
+     * @return
+     */
+    public abstract long position();
+
+    /**
+     * read: read back bytes that have been written before
+     * @param position - offset from the start of the output
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    public abstract void read(long position, byte[] b, int off, int len) throws IOException;
+}
@@ -0,0 +1,89 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies byte ranges (e.g. the XML of a node found with a NodeOffsetIndex)
+ * out of a temporary file. Reads go through a window of the file, so ranges
+ * requested in file order are read sequentially in large blocks.
+ */
+public class RecordReader implements RecordSource {
+    static final int WINDOW_SIZE = 1 << 16;
+
+    private String fileName;
+    private FileChannel channel;
+    private byte[] window;
+    private long windowStart;
+    private int windowLength;
+
+    public RecordReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        window = new byte[WINDOW_SIZE];
+        windowStart = 0;
+        windowLength = 0;
+    }
+
+    /**
+     * copy: write a range of the file to an output
+     * @param offset
+     * @param len
+     * @param out
+     * @throws IOException
+     */
+    @Override
+    public void copy(long offset, int len, OutputStream out) throws IOException {
+        while (len > 0) {
+            if (offset < windowStart || offset >= windowStart + windowLength) {
+                fill(offset);
+            }
+            int n = (int)Math.min(len, windowStart + windowLength - offset);
+            out.write(window, (int)(offset - windowStart), n);
+            offset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * fill: read the window starting at offset
+     * @param offset
+     * @throws IOException
+     */
+    private void fill(long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(window);
+
+        windowStart = offset;
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, offset + bb.position()) <= 0) break;
+        }
+        windowLength = bb.position();
+
+        if (windowLength == 0) {
+            throw new EOFException("read beyond the end of " + fileName);
+        }
+    }
+
+    @Override
+    public void release() throws IOException {
+        channel.close();
+    }
+}
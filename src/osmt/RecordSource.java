@@ -0,0 +1,36 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Source of byte ranges, e.g. the XML of nodes found with a NodeOffsetIndex.
+ */
+public interface RecordSource {
+    /**
+     * copy: write a range of bytes to an output
+     * @param offset
+     * @param len
+     * @param out
+     * @throws IOException
+     */
+    void copy(long offset, int len, OutputStream out) throws IOException;
+
+    /**
+     * release: give up the source after the last copy
+     * @throws IOException
+     */
+    void release() throws IOException;
+}
@@ -0,0 +1,275 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The united member list of a relation, built from the partial member lists
+ * of its copies in the tiles. Each partial list keeps the order of the
+ * original, so every member must follow the one before it in any copy; the
+ * members are written in an order that satisfies all of these, preferring
+ * the order in which they were first read.
+ *
+ * The members are found by type and ref in an open addressing hash table. A
+ * member occurring n times in a relation occurs n times in each copy having
+ * it; the n-th occurrence in a copy is matched to the n-th one read before.
+ */
+public class RelationMembers {
+    //members, from 1
+    private byte[] data = new byte[4096];
+    private int size;
+    private int count;
+    private int[] start = new int[64], end = new int[64];
+    private int[] sameKey = new int[64];    //next occurrence of the member
+    private int[] copy = new int[64];       //last copy the entry was matched in
+    private long[] keys = new long[64];
+    private int[] slot = new int[64];       //in the table, for the first occurrence
+    private int[] firstEdge = new int[64], predecessors = new int[64];
+
+    //members following others: edge i leads to edgeTo[i]
+    private int[] edgeTo = new int[64], nextEdge = new int[64];
+    private int edges;
+
+    //hash table: entry of the first occurrence, 0 if the slot is free
+    private long[] tableKeys = new long[256];
+    private int[] table = new int[256];
+    private int bits = 8;
+    private int used;
+
+    private int currentCopy, last;
+    private int[] heap = new int[64];
+
+    public RelationMembers() {
+        clear();
+    }
+
+    /**
+     * key: the key of a member
+     * @param type - Attributes.NODE, WAY or RELATION
+     * @param ref
+     * @return
+     */
+    static long key(String type, long ref) {
+        int t = type == Attributes.NODE ? 0 : type == Attributes.WAY ? 1 : type == Attributes.RELATION ? 2 : 3;
+        return ref << 2 | t;
+    }
+
+    /**
+     * clear: start the member list of the next relation
+     */
+    void clear() {
+        for (int e = 1; e < count; e++) {
+            if (slot[e] >= 0) table[slot[e]] = 0;
+        }
+        count = 1;
+        size = 0;
+        used = 0;
+        edges = 1;
+    }
+
+    /**
+     * startCopy: start reading the members of a copy
+     * @param c - number of the copy, from 1
+     */
+    void startCopy(int c) {
+        currentCopy = c;
+        last = 0;
+    }
+
+    /**
+     * add: add a member of the current copy, unless it is in the list already
+     * @param key - see key()
+     * @param b - the <member> line
+     * @param s
+     * @param e
+     */
+    void add(long key, byte[] b, int s, int e) {
+        int i = find(key);
+        int entry = table[i], previous = 0;
+
+        //the next occurrence not matched in this copy
+        while (entry != 0 && copy[entry] == currentCopy) {
+            previous = entry;
+            entry = sameKey[entry];
+        }
+        if (entry == 0) {
+            entry = newEntry(key, b, s, e);
+
+            if (previous == 0) {
+                table[i] = entry;
+                tableKeys[i] = key;
+                slot[entry] = i;
+                if (++used*2 > table.length) rehash();
+            }
+            else {
+                sameKey[previous] = entry;
+            }
+        }
+        copy[entry] = currentCopy;
+
+        if (last != 0) {
+            addEdge(last, entry);
+        }
+        last = entry;
+    }
+
+    /**
+     * write: write the <member> lines; members that cannot be ordered, as
+     * the copies contradict each other, are written last
+     * @param out
+     * @throws IOException
+     */
+    void write(OutputStream out) throws IOException {
+        int n = 0, written = 0;
+
+        if (heap.length < count) heap = new int[start.length];
+
+        for (int e = 1; e < count; e++) {
+            if (predecessors[e] == 0) n = push(n, e);
+        }
+        while (n > 0) {
+            int e = heap[0];
+            n = pop(n);
+            write(out, e);
+            written++;
+
+            for (int i = firstEdge[e]; i != 0; i = nextEdge[i]) {
+                if (--predecessors[edgeTo[i]] == 0) n = push(n, edgeTo[i]);
+            }
+        }
+        if (written < count - 1) {
+            for (int e = 1; e < count; e++) {
+                if (predecessors[e] > 0) write(out, e);
+            }
+        }
+    }
+
+    private void write(OutputStream out, int e) throws IOException {
+        out.write(data, start[e], end[e] - start[e]);
+        out.write('\n');
+    }
+
+    /**
+     * push, pop: min-heap of entries, so that the first one read is written
+     * first when there is a choice
+     * @param n - entries in the heap
+     * @return entries in the heap
+     */
+    private int push(int n, int e) {
+        int i = n++;
+
+        while (i > 0 && heap[(i - 1)/2] > e) {
+            heap[i] = heap[(i - 1)/2];
+            i = (i - 1)/2;
+        }
+        heap[i] = e;
+        return n;
+    }
+
+    private int pop(int n) {
+        int e = heap[--n];
+        int i = 0;
+
+        while (2*i + 1 < n) {
+            int c = 2*i + 1;
+            if (c + 1 < n && heap[c + 1] < heap[c]) c++;
+            if (heap[c] >= e) break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = e;
+        return n;
+    }
+
+    /**
+     * find: the slot of a key, or the free slot for it
+     */
+    private int find(long key) {
+        int mask = table.length - 1;
+        int i = (int)((key * 0x9e3779b97f4a7c15L) >>> (64 - bits));
+
+        while (table[i] != 0 && tableKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * newEntry: add a member
+     */
+    private int newEntry(long key, byte[] b, int s, int e) {
+        int len = e - s;
+
+        if (count == start.length) {
+            int n = count*2;
+            start = Arrays.copyOf(start, n);
+            end = Arrays.copyOf(end, n);
+            sameKey = Arrays.copyOf(sameKey, n);
+            copy = Arrays.copyOf(copy, n);
+            keys = Arrays.copyOf(keys, n);
+            slot = Arrays.copyOf(slot, n);
+            firstEdge = Arrays.copyOf(firstEdge, n);
+            predecessors = Arrays.copyOf(predecessors, n);
+        }
+        if (size + len > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + len, data.length*2));
+        }
+        int entry = count++;
+
+        System.arraycopy(b, s, data, size, len);
+        start[entry] = size;
+        end[entry] = size + len;
+        size += len;
+        keys[entry] = key;
+        sameKey[entry] = 0;
+        slot[entry] = -1;
+        firstEdge[entry] = 0;
+        predecessors[entry] = 0;
+        return entry;
+    }
+
+    /**
+     * addEdge: let a member follow another one
+     */
+    private void addEdge(int from, int to) {
+        if (edges == edgeTo.length) {
+            edgeTo = Arrays.copyOf(edgeTo, edges*2);
+            nextEdge = Arrays.copyOf(nextEdge, edges*2);
+        }
+        edgeTo[edges] = to;
+        nextEdge[edges] = firstEdge[from];
+        firstEdge[from] = edges++;
+        predecessors[to]++;
+    }
+
+    /**
+     * rehash: double the table
+     */
+    private void rehash() {
+        table = new int[table.length*2];
+        tableKeys = new long[table.length];
+        bits++;
+
+        for (int e = 1; e < count; e++) {
+            if (slot[e] >= 0) {
+                int i = find(keys[e]);
+                table[i] = e;
+                tableKeys[i] = keys[e];
+                slot[e] = i;
+            }
+        }
+    }
+}
@@ -20,33 +20,42 @@
 package osmt;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Split {
     String inputFileName;
     NodeToTileNumber n2tn;
-    BufferedReader br;
+    Input input;
+    XmlScanner scanner;
+    boolean pbf;
     String dataDir;
     float tilesize;
     boolean slim;
+    int threads;
+    long writeBuffer;
+    int maxOpenFiles;
+    boolean gzip;
+    boolean pbfTiles;
     
-    float nodeLat, nodeLon;
     long nodeId = 0, ref = 0, firstRef = 0, previousRef = 0;
     long tn = 0, previousTn = 0;
-    String line, wayLine = "";
+    byte[] startLine = new byte[256];     //the <way> or <relation> line, written later
+    int startLineLength = 0;
     String target = "";
     Tile t, previousT;
     
-    HashMap<String, String> attr;
-    
     HashMap<Long, Tile> tilesMap = new HashMap<Long, Tile>();
+    TileShard[] shards;
+    boolean nodesWritten = false;   //all node data is written, see syncNodes()
     
     //sets and maps used during way processing
     HashSet<Tile> tiles = new HashSet<Tile>();  //tilesWayIsIn
     HashMap<Tile, Boolean> refsHaveBeenWritten = new HashMap<Tile, Boolean>();
     HashMap<Tile, Long> lastRemoteNodeAdded = new HashMap<Tile, Long>();
-    HashMap<Tile, ArrayList<Long>> refs = new HashMap<Tile, ArrayList<Long>>();
-    HashMap<Tile, ArrayList<Long>> refTn = new HashMap<Tile, ArrayList<Long>>();
+    HashMap<Tile, LongList> refs = new HashMap<Tile, LongList>();
+    HashMap<Tile, LongList> refTn = new HashMap<Tile, LongList>();
 
     // for relation processing
     class RelationMember {
@@ -66,9 +75,9 @@ public class Split {
     }
 
     long wayId = 0; // way id of the currently processed way
-    HashMap<Long, ArrayList<Long>> wayNodes = new HashMap<Long, ArrayList<Long>>(); // nodes that are part of the ways
+    WayStore wayTiles; // tile numbers of the ways, sorted
+    long[] wayTns = new long[16];
     boolean skipRelation = false; // a flag for skipping relations containing other relations, as these are too general
-    String relationLine = "";
     HashMap<Tile, ArrayList<RelationMember>> members = new HashMap<Tile, ArrayList<RelationMember>>();
     
     /**
@@ -78,37 +87,60 @@ public class Split {
      * @param dataDir
      * @param tilesize
      * @param slim
+     * @param indexMemory - memory budget for the node index in bytes (0: use index file)
+     * @param indexOffHeap - keep the in-memory node index outside the Java heap
+     * @param writeBuffer - memory for buffered tile output in bytes
+     * @param maxOpenFiles - maximum number of tile files open at a time
+     * @param threads - number of parse and tile writer threads
+     * @param gzip - write gzip compressed tiles
+     * @param pbfTiles - write PBF tiles
      */
-    public Split(String inputFileName, String node2tnFile, String dataDir, float tilesize, boolean slim) {
+    public Split(String inputFileName, String node2tnFile, String dataDir, float tilesize, boolean slim, long indexMemory, boolean indexOffHeap, long writeBuffer, int maxOpenFiles, int threads, boolean gzip, boolean pbfTiles) {
         try {
-            n2tn = new NodeToTileNumber(node2tnFile, tilesize);
+            //keep the index in memory as long as the node IDs fit the budget
+            if (indexMemory > 0) {
+                n2tn = new MemoryNodeToTileNumber(node2tnFile, tilesize, indexMemory, indexOffHeap);
+            }
+            else {
+                n2tn = new MappedNodeToTileNumber(node2tnFile, tilesize);
+            }
         } catch (Exception e) {
             System.err.println("Error writing index file");
             System.exit(1);
         }
         
+        try {
+            wayTiles = new MappedWayStore(node2tnFile + ".ways");
+        } catch (Exception e) {
+            System.err.println("Error writing way index file: " + node2tnFile + ".ways");
+            System.exit(1);
+        }
+        
         this.inputFileName = inputFileName;
         this.dataDir = dataDir;
         this.tilesize = tilesize;
         this.slim = slim;
+        this.writeBuffer = writeBuffer;
+        this.maxOpenFiles = maxOpenFiles;
+        this.threads = threads;
+        this.gzip = gzip;
+        this.pbfTiles = pbfTiles;
         
         try {
-            FileReader fr = new FileReader(inputFileName);
-            br = new BufferedReader(fr);
-            
-            boolean invalidOSM = true;
+            input = new Input(inputFileName, threads);
+            pbf = PbfReader.isPbf(input.stream);
             
-            for (int i = 0; i < 3; i++) {
-                if (!br.readLine().contains("<osm")) {
-                    invalidOSM = false;
+            if (!pbf) {
+                scanner = new XmlScanner(input.stream);
+                
+                //the first element must be the <osm> root
+                boolean invalidOSM = !scanner.next() || scanner.kind != XmlScanner.OSM;
+                
+                if (invalidOSM) {
+                    System.err.println("Error: no OSM XML or PBF data found");
+                    System.exit(1);
                 }
             }
-            if (invalidOSM) {
-                System.err.println("Error: no OSM XML root tag found");
-                System.exit(1);
-            }
-            fr = new FileReader(inputFileName);
-            br = new BufferedReader(fr);
         } catch (Exception e) {
             System.err.println("Error opening input file: " + inputFileName);
             System.exit(1);
@@ -120,7 +152,7 @@ public class Split {
      * @throws Exception
      */
     public void split() throws Exception {
-        System.out.println("Splitting file " + inputFileName + ", tile size: " + tilesize + "°");
+        System.out.println("Splitting file " + inputFileName + ", tile size: " + tilesize + "°, threads: " + threads);
 
         Date startDate = new Date();
         long startTime = startDate.getTime(), timeRunning, lineCount = 0;
@@ -128,405 +160,470 @@ public class Split {
         
         boolean debug = false;
         
-        //read lines
-        while ((line = br.readLine()) != null) {
-            lineCount++;
+        //half of the threads write tiles, the other half parse the input
+        shards = new TileShard[Math.max(1, threads / 2)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new TileShard(new TileWriterPool(writeBuffer / shards.length, Math.max(1, maxOpenFiles / shards.length)), "osmt-write-" + i);
+        }
+        
+        ElementSource reader;
+        
+        if (pbf) {
+            reader = new PbfReader(input.stream, Math.max(1, threads - shards.length));
+        }
+        else if (input.compression != Input.PLAIN) {
+            //the nodes can only be read in chunks from a plain file
+            reader = new ElementReader(scanner, Math.max(1, threads - shards.length));
+        }
+        else {
+            //read the nodes in parallel chunks, then continue with the ways
+            long nodesEnd = new NodePass(this, inputFileName, threads).run();
+            FileInputStream in = new FileInputStream(inputFileName);
+            in.getChannel().position(nodesEnd);
+            scanner.close();
+            scanner = new XmlScanner(in);
             
-            //begin node
-            if (line.contains("<node ")) {
-                target = "nodes";
-                
-                //parse id, lat, lon
-                attr = parseAttr(line);
-                nodeId = Long.valueOf(attr.get("id"));
-                nodeLat = Float.valueOf(attr.get("lat"));
-                nodeLon = Float.valueOf(attr.get("lon"));
-                
-                //write tile number to random access file
-                tn = n2tn.setTn(nodeId, nodeLat, nodeLon);
-                
-                //remember tile
-                if (!tilesMap.containsKey(tn)) {
-                    t = new Tile(tn, dataDir);
-                    tilesMap.put(tn, t);
-                }
-                else {
-                    t = tilesMap.get(tn);
-                }
-                
-                //write
-                if (slim) {
-                    t.nodes.add(nodeId);
-                    t.writeTmpNodes(line);
-                }
-                else {
-                    storeNode(nodeId, t, line);
-                }
-            }
-            //end node
-            else if (line.contains("</node")) {
-                //write
-                if (slim) {
-                    t.writeTmpNodes(line);
-                }
-                else {
-                    storeNode(nodeId, t, line);
-                }
-            }
-            //begin way
-            else if (line.contains("<way ")) {
-                //init
-                target = "ways";
-                wayLine = line;     //save the <way> line, will be written later
-                attr = parseAttr(line);
-                wayId = Long.valueOf(attr.get("id"));
-                firstRef = 0;
-                previousRef = 0;
-                previousTn = 0;
-                tiles.clear();
-                refsHaveBeenWritten.clear();
-                lastRemoteNodeAdded.clear();
-                refs.clear();
-                refTn.clear();
-                
-                //debug = wayLine.contains("way id=\"0\""); //insert way ID to debug
-            }
-            //nd
-            else if (line.contains("<nd ")) {
-                //parse ref
-                attr = parseAttr(line);
-                ref = Long.valueOf(attr.get("ref"));
-
-                ArrayList<Long> nodes = wayNodes.getOrDefault(wayId, new ArrayList<Long>());
-                nodes.add(ref);
-                wayNodes.put(wayId, nodes);
-                
-                //get tile
-                tn = n2tn.getTn(ref);
-                t = tilesMap.get(tn);
-                tiles.add(t);
-                
-                //debug
-                if (debug) {
-                    System.out.println("== ref "+ref+" in tile "+tn+" ==");
-                }
-                
-                //init
-                if (!refs.containsKey(t)) {
-                    refs.put(t, new ArrayList<Long>());
-                    refTn.put(t, new ArrayList<Long>());
-                    lastRemoteNodeAdded.put(t, 0L);
-                }
-                
-                //if way crosses a tile boundary...
-                if (previousTn != tn && previousTn != 0) {
-                    //debug
-                    if (debug) {
-                        System.out.println("copying node "+ref+" from "+tn+" to "+previousTn);
+            reader = new ElementReader(scanner, Math.max(1, threads - shards.length));
+        }
+        ElementBatch xml;
+        
+        //read elements
+        try {
+            read:
+            while ((xml = reader.take()) != null) {
+                for (int e = 0; e < xml.count; e++) {
+                    lineCount++;
+                    int kind = xml.kind[e];
+                    
+                    //ways copy nodes between tiles, so the node data must be complete
+                    if (!nodesWritten && (kind == XmlScanner.WAY || kind == XmlScanner.RELATION)) {
+                        syncNodes();
                     }
                     
-                    //copy <node> backward
-                    if (slim) {
-                        previousT.nodes.add(ref);
-                        previousT.nodesExtra.add(ref);
-                        previousT.writeRemoteNode(ref, t);
+                    //begin node
+                    if (kind == XmlScanner.NODE) {
+                        target = "nodes";
+                        
+                        //id and tile number have been parsed by the reader
+                        nodeId = xml.id[e];
+                        tn = xml.tn[e];
+                        
+                        //write tile number to random access file
+                        if (tn != 0) {
+                            n2tn.setTn(nodeId, tn);
+                        }
+                        else {
+                            tn = -1;
+                        }
+                        
+                        //remember tile
+                        t = tile(tn);
+                        
+                        //write
+                        t.shard.add(TileShard.NODE, t, nodeId, xml.data, xml.lineStart[e], xml.end[e] - xml.lineStart[e]);
                     }
-                    else {
-                        storeRemoteNode(ref, t, previousT);
+                    //end node
+                    else if (kind == XmlScanner.NODE_END) {
+                        //write
+                        write(TileShard.NODE_LINE, t, xml, e);
                     }
-                    
-                    //copy ref backward
-                    refs.get(previousT).add(ref);
-                    refTn.get(previousT).add(tn);
-                    
-                    lastRemoteNodeAdded.put(previousT, ref);
-                    
-                    if (lastRemoteNodeAdded.get(t) != previousRef) {    //prevent nodes from being inserting two subsequent times
+                    //begin way
+                    else if (kind == XmlScanner.WAY) {
+                        //init
+                        target = "ways";
+                        saveStartLine(xml, e);     //save the <way> line, will be written later
+                        wayId = xml.id[e];
+                        firstRef = 0;
+                        previousRef = 0;
+                        previousTn = 0;
+                        tiles.clear();
+                        refsHaveBeenWritten.clear();
+                        lastRemoteNodeAdded.clear();
+                        refs.clear();
+                        refTn.clear();
+                        
+                        //debug = wayId == 0; //insert way ID to debug
+                    }
+                    //nd
+                    else if (kind == XmlScanner.ND) {
+                        ref = xml.id[e];
+                        
+                        //get tile
+                        tn = n2tn.getTn(ref);
+                        t = tilesMap.get(tn);
+                        tiles.add(t);
+                        
                         //debug
                         if (debug) {
-                            System.out.println("copying node "+previousRef+" from "+previousTn+" to "+tn);
+                            System.out.println("== ref "+ref+" in tile "+tn+" ==");
                         }
                         
-                        //copy <node> forward
-                        if (slim) {
-                            t.nodes.add(previousRef);
-                            t.nodesExtra.add(previousRef);
-                            t.writeRemoteNode(previousRef, previousT);
+                        //init
+                        if (!refs.containsKey(t)) {
+                            refs.put(t, new LongList(16));
+                            refTn.put(t, new LongList(16));
+                            lastRemoteNodeAdded.put(t, 0L);
                         }
-                        else {
-                            storeRemoteNode(previousRef, previousT, t);
+                        
+                        //if way crosses a tile boundary...
+                        if (previousTn != tn && previousTn != 0) {
+                            //debug
+                            if (debug) {
+                                System.out.println("copying node "+ref+" from "+tn+" to "+previousTn);
+                            }
+                            
+                            //copy <node> backward
+                            previousT.shard.addRemoteNode(previousT, ref, t);
+                            
+                            //copy ref backward
+                            refs.get(previousT).add(ref);
+                            refTn.get(previousT).add(tn);
+                            
+                            lastRemoteNodeAdded.put(previousT, ref);
+                            
+                            if (lastRemoteNodeAdded.get(t) != previousRef) {    //prevent nodes from being inserting two subsequent times
+                                //debug
+                                if (debug) {
+                                    System.out.println("copying node "+previousRef+" from "+previousTn+" to "+tn);
+                                }
+                                
+                                //copy <node> forward
+                                t.shard.addRemoteNode(t, previousRef, previousT);
+                                
+                                //copy ref forward
+                                refs.get(t).add(previousRef);
+                                refTn.get(t).add(previousTn);
+                            }
                         }
                         
-                        //copy ref forward
-                        refs.get(t).add(previousRef);
-                        refTn.get(t).add(previousTn);
+                        //other nd
+                        refs.get(t).add(ref);
+                        refTn.get(t).add(0);
+                        
+                        if (firstRef == 0) {
+                            firstRef = ref;
+                        }
+                                        
+                        previousT = t;
+                        previousTn = tn;
+                        previousRef = ref;
                     }
-                }
-                
-                //other nd
-                refs.get(t).add(ref);
-                refTn.get(t).add(0L);
-                
-                if (firstRef == 0) {
-                    firstRef = ref;
-                }
-                                
-                previousT = t;
-                previousTn = tn;
-                previousRef = ref;
-            }
-            //end way
-            else if (line.contains("</way")) {
-                //write all lines if not yet done (in each tile)
-                for (Tile i : tiles) {
-                    if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
-                        //Closed ways: If the last nd equals the first nd, append to all segments
-                        //the first (local) nd.
-                        if (ref == firstRef && ref != refs.get(i).get(refs.get(i).size() - 1)) {
-                            refs.get(i).add(refs.get(i).get(0));
-                            refTn.get(i).add(refTn.get(i).get(0));
+                    //end way
+                    else if (kind == XmlScanner.WAY_END) {
+                        //remember the tiles of the way for relation members
+                        if (wayTns.length < tiles.size()) {
+                            wayTns = new long[tiles.size()*2];
                         }
-                        //debug
-                        if (debug) {
-                            System.out.println("closed way, write first nd again in tile "+tn);
+                        int n = 0;
+                        for (Tile i : tiles) {
+                            if (i != null && i.tn > 0) wayTns[n++] = i.tn;
                         }
-                                                
-                        //write <way>, <nd>s
-                        i.writeTmpWays(wayLine);
-                        writeRefs(i);
-                        refsHaveBeenWritten.put(i, true);
+                        Arrays.sort(wayTns, 0, n);
+                        wayTiles.put(wayId, wayTns, n);
+                        
+                        writeWayLine(xml, e, debug);
                     }
-                    //write
-                    i.writeTmpWays(line);
-                }
-            }
-            // begin relation
-            else if (line.contains("<relation ")) {
-                target = "relations";
-                skipRelation = false;
-                relationLine = line;
-                firstRef = 0;
-                previousRef = 0;
-                previousTn = 0;
-                tiles.clear();
-                members.clear();
-                refsHaveBeenWritten.clear();
-            }
-            // member
-            else if (line.contains("<member ")) {
-                if (!skipRelation) {
-                    attr = parseAttr(line);
-                    ref = Long.valueOf(attr.get("ref"));
-
-                    if (attr.get("type").equals("relation")) {
-                        skipRelation = true;
-                    } else if (attr.get("type").equals("way")) {
-                        ArrayList<Long> nodes = wayNodes.get(ref);
-                        if (nodes != null) {
-                            for (Long node : nodes) {
+                    // begin relation
+                    else if (kind == XmlScanner.RELATION) {
+                        target = "relations";
+                        skipRelation = false;
+                        saveStartLine(xml, e);
+                        firstRef = 0;
+                        previousRef = 0;
+                        previousTn = 0;
+                        tiles.clear();
+                        members.clear();
+                        refsHaveBeenWritten.clear();
+                    }
+                    // member
+                    else if (kind == XmlScanner.MEMBER) {
+                        if (!skipRelation) {
+                            ref = xml.id[e];
+                            String type = xml.type[e];
+        
+                            if (type == Attributes.RELATION) {
+                                skipRelation = true;
+                            } else if (type == Attributes.WAY) {
+                                long[] wayTns = wayTiles.get(ref);
+                                if (wayTns != null) {
+                                    for (long wayTn : wayTns) {
+                                        t = tilesMap.get(wayTn);
+                                        if (t != null) {
+                                            tiles.add(t);
+        
+                                            //init
+                                            if (!members.containsKey(t)) {
+                                                members.put(t, new ArrayList<RelationMember>());
+                                            }
+        
+                                            members.get(t).add(new RelationMember("way", ref, xml.role[e]));
+                                        }
+                                    }
+                                }
+                            } else if (type == Attributes.NODE) {
                                 //get tile
-                                tn = n2tn.getTn(node);
+                                tn = n2tn.getTn(ref);
                                 if (tn > 0) {
                                     t = tilesMap.get(tn);
                                     if (t != null) {
                                         tiles.add(t);
                                     }
-
+        
                                     //init
                                     if (!members.containsKey(t)) {
-                                        ArrayList<RelationMember> mm = new ArrayList<RelationMember>();
-                                        mm.add(new RelationMember("way", ref, attr.getOrDefault("role", "")));
-                                        members.put(t, mm);
+                                        members.put(t, new ArrayList<RelationMember>());
                                     }
+        
+                                    members.get(t).add(new RelationMember("node", ref, xml.role[e]));
                                 }
                             }
                         }
-                    } else if (attr.get("type").equals("node")) {
-                        //get tile
-                        tn = n2tn.getTn(ref);
-                        if (tn > 0) {
-                            t = tilesMap.get(tn);
-                            if (t != null) {
-                                tiles.add(t);
-                            }
-
-                            //init
-                            if (!members.containsKey(t)) {
-                                members.put(t, new ArrayList<RelationMember>());
-                            }
-
-                            members.get(t).add(new RelationMember("node", ref, attr.getOrDefault("role", "")));
-                        }
                     }
-                }
-            }
-            // end relation
-            else if (line.contains("</relation")) {
-                if (!skipRelation) {
-                    //write all lines if not yet done (in each tile)
-                    for (Tile i : tiles) {
-                        if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
-                            //write <way>, <nd>s
-                            i.writeTmpRelations(relationLine);
-                            writeMembers(i);
-                            refsHaveBeenWritten.put(i, true);
+                    // end relation
+                    else if (kind == XmlScanner.RELATION_END) {
+                        if (!skipRelation) {
+                            writeRelationLine(xml, e);
                         }
-                        //write
-                        i.writeTmpRelations(line);
                     }
-                }
-            }
-            //end
-            else if (line.contains("</osm")) {
-                break;
-            }
-            //tags
-            else {
-                if (target.equals("nodes")) {
-                    if (slim) {
-                        t.writeTmpNodes(line);
+                    //end
+                    else if (kind == XmlScanner.OSM_END) {
+                        break read;
                     }
+                    //tags
                     else {
-                        storeNode(nodeId, t, line);
-                    }
-                } else if (target.equals("ways")) {
-                    //write all lines if not yet done (in each tile)
-                    for (Tile i : tiles) {
-                        if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
-                            //Closed ways: If the last nd equals the first nd, append to all segments
-                            //the first (local) nd.
-                            if (ref == firstRef && ref != refs.get(i).get(refs.get(i).size() - 1)) {
-                                refs.get(i).add(refs.get(i).get(0));
-                                refTn.get(i).add(refTn.get(i).get(0));
+                        if (target.equals("nodes")) {
+                            write(TileShard.NODE_LINE, t, xml, e);
+                        } else if (target.equals("ways")) {
+                            writeWayLine(xml, e, debug);
+                        } else if (target.equals("relations")) {
+                            if (!skipRelation) {
+                                writeRelationLine(xml, e);
                             }
-                            //debug
-                            if (debug) {
-                                System.out.println("closed way, write first nd again in tile "+tn);
-                            }
-
-                            //write <way>, <nd>s
-                            i.writeTmpWays(wayLine);
-                            writeRefs(i);
-                            refsHaveBeenWritten.put(i, true);
                         }
-                        //write
-                        i.writeTmpWays(line);
                     }
-                } else if (target.equals("relations")) {
-                    if (!skipRelation) {
-                        //write all lines if not yet done (in each tile)
-                        for (Tile i : tiles) {
-                            if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
-                                //write <way>, <nd>s
-                                i.writeTmpRelations(relationLine);
-                                writeMembers(i);
-                                refsHaveBeenWritten.put(i, true);
-                            }
-                            //write
-                            i.writeTmpRelations(line);
-                        }
+                    
+                    // performance status
+                    if (lineCount % lineThreshold == 0) {
+                        timeRunning = new Date().getTime() - startTime;
+                        startTime = new Date().getTime();
+        
+                        System.out.println("read " + lineCount + " elements (" + lineThreshold + " in " + timeRunning + " ms)");
                     }
                 }
+                reader.recycle(xml);
             }
-            
-            // performance status
-            if (lineCount % lineThreshold == 0) {
-                timeRunning = new Date().getTime() - startTime;
-                startTime = new Date().getTime();
-
-                System.out.println("read " + lineCount + " lines (" + lineThreshold + " in " + timeRunning + " ms)");
-            }
+        } finally {
+            reader.close();
         }
         
-        System.out.println("writing nodes ...");
+        for (TileShard shard : shards) {
+            shard.finish();
+        }
+        
+        System.out.println("writing tiles ...");
+        
+        //all threads write (and compress) the output files, a tile at a time
+        final ConcurrentLinkedQueue<Tile> queue = new ConcurrentLinkedQueue<Tile>(tilesMap.values());
+        Thread[] writers = new Thread[threads];
+        final Exception[] errors = new Exception[threads];
+        
+        for (int i = 0; i < threads; i++) {
+            final int w = i;
+            writers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        writeTiles(queue, new TileWriterPool(writeBuffer / threads, Math.max(1, maxOpenFiles / threads)));
+                    } catch (Exception e) {
+                        errors[w] = e;
+                    }
+                }
+            }, "osmt-write-" + i);
+            writers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            writers[i].join();
+            if (errors[i] != null) throw errors[i];
+        }
+        
+        n2tn.close();
+        wayTiles.close();
+    }
+    
+    /**
+     * tile: get the tile with a tile number, creating it in the next shard
+     * if it does not exist yet
+     * @param tn
+     * @return
+     */
+    Tile tile(long tn) {
+        Tile t = tilesMap.get(tn);
+        
+        if (t == null) {
+            TileShard shard = shards[tilesMap.size() % shards.length];
+            t = new Tile(tn, dataDir, shard.pool, slim);
+            t.shard = shard;
+            shard.tiles.add(t);
+            tilesMap.put(tn, t);
+        }
+        return t;
+    }
+    
+    /**
+     * syncNodes: wait until the node data of all tiles has been written, so
+     * that the shards can copy nodes between tiles
+     * @throws Exception
+     */
+    void syncNodes() throws Exception {
+        for (TileShard shard : shards) {
+            shard.sync();
+        }
+        //node data is read back from the files only
+        if (slim) {
+            for (Tile i : tilesMap.values()) {
+                i.nodesWriter.flush();
+            }
+        }
+        nodesWritten = true;
+    }
+    
+    /**
+     * writeTiles: write the output files of tiles from a queue, until it is
+     * empty; the shards are finished, so their writers may be closed here
+     * @param queue
+     * @param writers - for the output files of this thread
+     * @throws IOException
+     */
+    void writeTiles(ConcurrentLinkedQueue<Tile> queue, TileWriterPool writers) throws IOException {
+        Tile i;
         
-        for (Tile i : tilesMap.values()) {
-            //close termsmp. writers
+        while ((i = queue.poll()) != null) {
+            //close temp. writers
             i.nodesWriter.close();
             i.nodesExtraWriter.close();
             i.waysWriter.close();
+            i.relationsWriter.close();
             
             //create writer for output file
-            i.tileWriter = new FileWriter(i.tileFn);
+            i.openOutput(writers, gzip, pbfTiles);
             i.writeOpening();
             
-            //write nodes
-            if (slim) {
-                i.writeNodesFromTmp();
-            }
-            else {
-                for (String s : i.nodesMap.values()) {
-                    i.writeLine(s);
-                }
-            }
-        }
-        
-        System.out.println("writing ways ...");
-        
-        for (Tile i : tilesMap.values()) {
-            //write ways
+            //write nodes, ways, relations
+            i.writeNodesFromTmp();
             i.writeWaysFromTmp();
-        }
-
-        System.out.println("writing relations ...");
-        
-        for (Tile i : tilesMap.values()) {
-            //write ways
             i.writeRelationsFromTmp();
-        }
-        
-        System.out.println("closing ...");
-        
-        for (Tile i : tilesMap.values()) {
+            
             i.writeClosingTags();
             i.removeTmpFiles();
         }
     }
     
     /**
-     * storeNode: write node data to TreeMap 
-     * @param ref
-     * @param tn
-     * @param s
+     * writeWayLine: write a line of the current way to all its tiles, after
+     * the <way> line and the <nd>s if not yet done
+     * @param xml
+     * @param e
+     * @param debug
+     * @throws InterruptedException
      */
-    void storeNode(long ref, Tile tile, String s) {
-        if (tile.nodesMap.containsKey(ref)) {
-            tile.nodesMap.put(ref, tile.nodesMap.get(ref) + "\n" + s);
+    void writeWayLine(ElementBatch xml, int e, boolean debug) throws InterruptedException {
+        //write all lines if not yet done (in each tile)
+        for (Tile i : tiles) {
+            if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
+                //Closed ways: If the last nd equals the first nd, append to all segments
+                //the first (local) nd.
+                if (ref == firstRef && ref != refs.get(i).last()) {
+                    refs.get(i).add(refs.get(i).first());
+                    refTn.get(i).add(refTn.get(i).first());
+                }
+                //debug
+                if (debug) {
+                    System.out.println("closed way, write first nd again in tile "+tn);
+                }
+                                        
+                //write <way>, <nd>s
+                i.shard.add(TileShard.WAY_LINE, i, 0, startLine, 0, startLineLength);
+                writeRefs(i);
+                refsHaveBeenWritten.put(i, true);
+            }
+            //write
+            write(TileShard.WAY_LINE, i, xml, e);
         }
-        else tile.nodesMap.put(ref, s);
     }
-
+    
+    /**
+     * writeRelationLine: write a line of the current relation to all its
+     * tiles, after the <relation> line and the <member>s if not yet done
+     * @param xml
+     * @param e
+     * @throws InterruptedException
+     */
+    void writeRelationLine(ElementBatch xml, int e) throws InterruptedException {
+        //write all lines if not yet done (in each tile)
+        for (Tile i : tiles) {
+            if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
+                //write <relation>, <member>s
+                i.shard.add(TileShard.RELATION_LINE, i, 0, startLine, 0, startLineLength);
+                writeMembers(i);
+                refsHaveBeenWritten.put(i, true);
+            }
+            //write
+            write(TileShard.RELATION_LINE, i, xml, e);
+        }
+    }
+    
     /**
-     * storeRemoteNode: write a single node entry from tile to remote's TreeMap
-     * @param ref
+     * write: queue the line of an element to be written to a tile
+     * @param op - TileShard.NODE_LINE, WAY_LINE or RELATION_LINE
      * @param tile
-     * @param remote
+     * @param xml
+     * @param e
+     * @throws InterruptedException
      */
-    void storeRemoteNode(long ref, Tile tile, Tile remote) {
-        String s = tile.nodesMap.get(ref);
-
-        if (remote.nodesMap.containsKey(ref)) {
-            remote.nodesMap.put(ref, remote.nodesMap.get(ref) + "\n" + s);
+    void write(int op, Tile tile, ElementBatch xml, int e) throws InterruptedException {
+        tile.shard.add(op, tile, 0, xml.data, xml.lineStart[e], xml.end[e] - xml.lineStart[e]);
+    }
+    
+    /**
+     * write: queue a line to be written to a tile
+     * @param op - TileShard.NODE_LINE, WAY_LINE or RELATION_LINE
+     * @param tile
+     * @param s
+     * @throws InterruptedException
+     */
+    void write(int op, Tile tile, String s) throws InterruptedException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        tile.shard.add(op, tile, 0, b, 0, b.length);
+    }
+    
+    /**
+     * saveStartLine: keep a copy of a <way> or <relation> line
+     * @param xml
+     * @param e
+     */
+    void saveStartLine(ElementBatch xml, int e) {
+        startLineLength = xml.end[e] - xml.lineStart[e];
+        if (startLine.length < startLineLength) {
+            startLine = new byte[Math.max(startLineLength, startLine.length*2)];
         }
-        else remote.nodesMap.put(ref, s);
+        System.arraycopy(xml.data, xml.lineStart[e], startLine, 0, startLineLength);
     }
     
     /**
      * writeRefs: write <nd .../> lines to file
      * @param tile
      */
-    void writeRefs(Tile tile) {
+    void writeRefs(Tile tile) throws InterruptedException {
         //fix problem with first/last node of closed way being the last remote node
-        if (ref == firstRef && ref != refs.get(tile).get(0) && ref == lastRemoteNodeAdded.get(tile)) {
-            refs.get(tile).add(0, ref);
-            refTn.get(tile).add(0, refTn.get(tile).get(refTn.get(tile).size() - 1));
+        if (ref == firstRef && ref != refs.get(tile).first() && ref == lastRemoteNodeAdded.get(tile)) {
+            refs.get(tile).addFirst(ref);
+            refTn.get(tile).addFirst(refTn.get(tile).last());
         }
         for (int i = 0; i < refs.get(tile).size(); i++) {
             if (refTn.get(tile).size() > i && refTn.get(tile).get(i) != 0) {
-                tile.writeTmpWays("     <nd ref=\"" + refs.get(tile).get(i) + "\" tn=\"" + refTn.get(tile).get(i) + "\"/>");
+                write(TileShard.WAY_LINE, tile, "     <nd ref=\"" + refs.get(tile).get(i) + "\" tn=\"" + refTn.get(tile).get(i) + "\"/>");
             }
             else {
-                tile.writeTmpWays("     <nd ref=\"" + refs.get(tile).get(i) + "\"/>");
+                write(TileShard.WAY_LINE, tile, "     <nd ref=\"" + refs.get(tile).get(i) + "\"/>");
             }
         }
     }
@@ -535,31 +632,12 @@ public class Split {
      * writeRefs: write <member .../> lines to file
      * @param tile
      */
-    void writeMembers(Tile tile) {
+    void writeMembers(Tile tile) throws InterruptedException {
         ArrayList<RelationMember> obj = members.get(tile);
         if (obj != null) {
             for (int i = 0; i < obj.size(); i++) {
-                tile.writeTmpRelations("     " + obj.get(i).toString());
-            }
-        }
-    }
-    
-    /**
-     * parseAttr: parse XML attributes from a line
-     * @param line
-     * @return key/value HashMap
-     */
-    public static HashMap<String, String> parseAttr(String line) {
-        HashMap<String, String> result = new HashMap<String, String>();
-        String[] attributes = line.trim().replaceAll("/>$", "").replaceAll(">$", "").split(" +");
-        
-        for (String s : attributes) {
-            if (s.contains("=")) {
-                String[] keyValue = s.replace("\"", "").split("=");
-                if (keyValue.length > 1)
-                    result.put(keyValue[0], keyValue[1]);
+                write(TileShard.RELATION_LINE, tile, "     " + obj.get(i).toString());
             }
         }
-        return result;
     }
 }
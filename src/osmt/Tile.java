@@ -15,27 +15,38 @@
 
 package osmt;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Writer;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
 public class Tile {
     public long tn;
-    public TreeMap<Long, String> nodesMap;
-    public TreeSet<Long> nodes;
-    public TreeSet<Long> nodesExtra;
+    boolean slim;
+    TileShard shard;    //the thread that writes the temporary data, set by Split
+    NodeOffsetIndex nodeOffsets;    //positions of the nodes in nodesWriter
+    NodeOffsetIndex extraOffsets;   //positions of the nodes in nodesExtraWriter
     
     String dataDir, tileFn, nodesFn, nodesExtraFn, waysFn, relationsFn;
-    Writer tileWriter, nodesWriter, nodesExtraWriter, waysWriter, relationsWriter;
+    OutputStream tileWriter, waysWriter, relationsWriter;
+    RandomAccessOutput nodesWriter, nodesExtraWriter;   //temporary files if slim, NodeArenas otherwise
+    private byte[] copyBuffer;
 
-    public Tile(long tn, String dataDir) {
+    /**
+     * Constructor
+     * @param tn
+     * @param dataDir
+     * @param writers
+     * @param slim - keep nodes in temporary files instead of memory
+     */
+    public Tile(long tn, String dataDir, TileWriterPool writers, boolean slim) {
         this.tn = tn;
         this.dataDir = dataDir;
+        this.slim = slim;
         
         File dir = new File(dataDir + tn);
         if (!dir.exists()) dir.mkdir();
@@ -46,35 +57,61 @@ public class Tile {
         waysFn = dir + "/" + "ways.osm";
         relationsFn = dir + "/" + "relations.osm";
 
-        try {
-            nodesWriter = new FileWriter(nodesFn);
-        } catch (IOException e) {
-            System.err.println("error opening file: " + nodesFn);
-            e.printStackTrace();
+        if (slim) {
+            try {
+                nodesWriter = new BufferedTileWriter(nodesFn, writers);
+            } catch (IOException e) {
+                System.err.println("error opening file: " + nodesFn);
+                e.printStackTrace();
+            }
+            try {
+                nodesExtraWriter = new BufferedTileWriter(nodesExtraFn, writers);
+            } catch (IOException e) {
+                System.err.println("error opening file: " + nodesExtraFn);
+                e.printStackTrace();
+            }
         }
-        try {
-            nodesExtraWriter = new FileWriter(nodesExtraFn);
-        } catch (IOException e) {
-            System.err.println("error opening file: " + nodesExtraFn);
-            e.printStackTrace();
+        else {
+            nodesWriter = new NodeArena();
+            nodesExtraWriter = new NodeArena();
         }
         try {
-            waysWriter = new FileWriter(waysFn);
+            waysWriter = new BufferedTileWriter(waysFn, writers);
         } catch (IOException e) {
             System.err.println("error opening file: " + waysFn);
             e.printStackTrace();
         }
 
         try {
-            relationsWriter = new FileWriter(relationsFn);
+            relationsWriter = new BufferedTileWriter(relationsFn, writers);
         } catch (IOException e) {
             System.err.println("error opening file: " + relationsFn);
             e.printStackTrace();
         }
 
-        nodesMap = new TreeMap<Long, String>();
-        nodes = new TreeSet<Long>();
-        nodesExtra = new TreeSet<Long>();
+        nodeOffsets = new NodeOffsetIndex();
+        extraOffsets = new NodeOffsetIndex();
+    }
+    
+    /**
+     * openOutput: create the writer for the output file
+     * @param writers
+     * @param gzip - write N.osm.gz instead of N.osm
+     * @param pbf - write N.osm.pbf instead of N.osm
+     * @throws IOException
+     */
+    public void openOutput(TileWriterPool writers, boolean gzip, boolean pbf) throws IOException {
+        if (pbf) {
+            tileFn = dataDir + tn + ".osm.pbf";
+            tileWriter = new PbfTileWriter(new BufferedTileWriter(tileFn, writers));
+        }
+        else if (gzip) {
+            tileFn = dataDir + tn + ".osm.gz";
+            tileWriter = new BufferedOutputStream(new GZIPOutputStream(new BufferedTileWriter(tileFn, writers), 1 << 16), 1 << 16);
+        }
+        else {
+            tileWriter = new BufferedTileWriter(tileFn, writers);
+        }
     }
     
     /**
@@ -84,19 +121,12 @@ public class Tile {
         float[] bounds = NodeToTileNumber.getBounds(tn);
         
         try {
-            tileWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-            tileWriter.write("<osm version=\"0.6\" generator=\"osmt\">\n");
-            tileWriter.write("<bounds minlat=\"" + bounds[0] + "\" minlon=\"" + bounds[1] + "\" maxlat=\"" + bounds[2] + "\" maxlon=\"" + bounds[3] + "\"/>\n");
+            write(tileWriter, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            write(tileWriter, "<osm version=\"0.6\" generator=\"osmt\">\n");
+            write(tileWriter, "<bounds minlat=\"" + bounds[0] + "\" minlon=\"" + bounds[1] + "\" maxlat=\"" + bounds[2] + "\" maxlon=\"" + bounds[3] + "\"/>\n");
         } catch (IOException e) {
             System.err.println("error writing to file: " + tileFn);
             e.printStackTrace();
-        } finally {
-            try {
-                tileWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + tileFn);
-                e.printStackTrace();
-            }
         }
     }
 
@@ -106,88 +136,95 @@ public class Tile {
      */
     public void writeLine(String s) {
         try {
-            tileWriter.write(s+"\n");
+            write(tileWriter, s + "\n");
         } catch (IOException e) {
             System.err.println("error writing to file: " + tileFn);
             e.printStackTrace();
-        } finally {
-            try {
-                tileWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + tileFn);
-                e.printStackTrace();
-            }
         }
     }
     
     /**
-     * writeRemoteNode
+     * writeRemoteNode: copy a node from the node data of another tile, using
+     * that tile's offset index
+     * @param id
+     * @param remote
      */
     public void writeRemoteNode(long id, Tile remote) throws IOException {
-        String line;
-        boolean parse = false;
+        int i = remote.nodeOffsets.find(id);
+        
+        if (i < 0) return;
         
+        int len = remote.nodeOffsets.length(i, remote.nodesWriter.position());
+        
+        if (copyBuffer == null || copyBuffer.length < len) {
+            copyBuffer = new byte[Math.max(len, 4096)];
+        }
         try {
-            FileReader fr = new FileReader(remote.nodesFn);
-            BufferedReader br = new BufferedReader(fr);
-
-            while ((line = br.readLine()) != null) {
-                if (parse) {
-                    if (line.contains(" id=\"")) {
-                        break;
-                    }
-                    else try {
-                        nodesExtraWriter.write(line + "\n");
-                    } catch (IOException e) {
-                        System.err.println("error writing to file: " + nodesExtraFn);
-                        e.printStackTrace();
-                    }
-                }
-                else if (line.contains(" id=\"" + id + "\"")) {
-                    try {
-                        nodesExtraWriter.write(line + "\n");
-                    } catch (IOException e) {
-                        System.err.println("error writing to file: " + nodesExtraFn);
-                        e.printStackTrace();
-                    }
-                    parse = true;
-                }
-            }
-            //close BufferedReader
-            try {
-                br.close();
-            } catch (Exception e) {
-                System.err.println("error closing BufferedReader");
-                e.printStackTrace();
-            }
+            remote.nodesWriter.read(remote.nodeOffsets.offset(i), copyBuffer, 0, len);
         } catch (IOException e) {
-            System.err.println("error opening file: " + remote.nodesFn);
+            System.err.println("error reading file: " + remote.nodesFn);
+            e.printStackTrace();
+            return;
+        }
+        try {
+            extraOffsets.add(id, nodesExtraWriter.position());
+            nodesExtraWriter.write(copyBuffer, 0, len);
+        } catch (IOException e) {
+            System.err.println("error writing to file: " + nodesExtraFn);
             e.printStackTrace();
-        } finally {
-            try {
-                nodesExtraWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + nodesExtraFn);
-                e.printStackTrace();
-            }
         }
     }
 
+    /**
+     * writeTmpNode: write the first line of a node to temporary file and
+     * record its position
+     * @param id
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void writeTmpNode(long id, byte[] b, int off, int len) {
+        nodeOffsets.add(id, nodesWriter.position());
+        writeTmpNodes(b, off, len);
+    }
+
+    /**
+     * appendNodes: append nodes that have been read elsewhere to the node
+     * data of the tile
+     * @param index - positions of the nodes in data
+     * @param data
+     * @throws IOException
+     */
+    public void appendNodes(NodeOffsetIndex index, NodeArena data) throws IOException {
+        long base = nodesWriter.position();
+        
+        for (int i = 0; i < index.size(); i++) {
+            nodeOffsets.add(index.id(i), base + index.offset(i));
+        }
+        data.copy(0, (int)data.position(), nodesWriter);
+    }
+
     /**
      * writeTmpNodes: write node data to temporary file
      * @param s
      */
     public void writeTmpNodes(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeTmpNodes(b, 0, b.length);
+    }
+
+    /**
+     * writeTmpNodes: write a line of node data from a byte buffer to temporary file
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void writeTmpNodes(byte[] b, int off, int len) {
         try {
-            nodesWriter.write(s + "\n");
+            nodesWriter.write(b, off, len);
+            nodesWriter.write('\n');
         } catch (IOException e) {
             System.err.println("error writing to file: " + nodesFn);
-        } finally {
-            try {
-                nodesWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + nodesFn);
-            }
         }
     }
 
@@ -196,16 +233,22 @@ public class Tile {
      * @param s
      */
     public void writeTmpWays(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeTmpWays(b, 0, b.length);
+    }
+
+    /**
+     * writeTmpWays: write a line of way data from a byte buffer to temporary file
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void writeTmpWays(byte[] b, int off, int len) {
         try {
-            waysWriter.write(s + "\n");
+            waysWriter.write(b, off, len);
+            waysWriter.write('\n');
         } catch (IOException e) {
             System.err.println("error writing to file: " + waysFn);
-        } finally {
-            try {
-                waysWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + waysFn);
-            }
         }
     }
 
@@ -214,163 +257,81 @@ public class Tile {
      * @param s
      */
     public void writeTmpRelations(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeTmpRelations(b, 0, b.length);
+    }
+
+    /**
+     * writeTmpRelations: write a line of relation data from a byte buffer to temporary file
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void writeTmpRelations(byte[] b, int off, int len) {
         try {
-            relationsWriter.write(s + "\n");
+            relationsWriter.write(b, off, len);
+            relationsWriter.write('\n');
         } catch (IOException e) {
             System.err.println("error writing to file: " + relationsFn);
-        } finally {
-            try {
-                relationsWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + relationsFn);
-            }
         }
     }
 
     /**
-     * writeNodesFromTmp: write node data from temporary files to output file
+     * writeNodesFromTmp: write node data from temporary files to output file,
+     * merging the local nodes and the copies of remote nodes by ID
      */
     public void writeNodesFromTmp() {
-        String line, previousLine = "";
-        boolean parse;
+        nodeOffsets.sort(nodesWriter.position());
+        extraOffsets.sort(nodesExtraWriter.position());
+        
+        RecordSource local, extra;
         
         try {
-            FileReader fr = new FileReader(nodesFn);
-            BufferedReader br = new BufferedReader(fr);
-            
-            try {
-                for (long id : nodes) {
-                    parse = false;
-                    
-                    //look in nodes-extra
-                    if (nodesExtra.contains(id)) {
-                        FileReader extraFr = new FileReader(nodesExtraFn);
-                        BufferedReader extraBr = new BufferedReader(extraFr);
-                        
-                        while ((line = extraBr.readLine()) != null) {
-                            if (parse) {
-                                if (line.contains(" id=\"")) {
-                                    break;
-                                }
-                                else try {
-                                    tileWriter.write(line + "\n");
-                                } catch (IOException e) {
-                                    System.err.println("error writing to file: " + tileFn);
-                                    e.printStackTrace();
-                                }
-                            }
-                            else if (line.contains(" id=\"" + id + "\"")) {
-                                try {
-                                    tileWriter.write(line + "\n");
-                                } catch (IOException e) {
-                                    System.err.println("error writing to file: " + tileFn);
-                                    e.printStackTrace();
-                                }
-                                parse = true;
-                            }
-                        }
-                        //close BufferedReader
-                        try {
-                            extraBr.close();
-                        } catch (Exception e) {
-                            System.err.println("error closing BufferedReader");
-                            e.printStackTrace();
-                        }
-                    }
-                    //if not found in nodes-extra, continue with nodes
-                    else {
-                        //previousLine is the line read just before the loop broke the last time
-                        if (previousLine.contains(" id=\"" + id + "\"")) {
-                            try {
-                                tileWriter.write(previousLine + "\n");
-                            } catch (IOException e) {
-                                System.err.println("error writing to file: " + tileFn);
-                                e.printStackTrace();
-                            }
-                            parse = true;
-                        }
-                        while ((line = br.readLine()) != null) {
-                            if (parse) {
-                                if (line.contains(" id=\"")) {
-                                    previousLine = line;
-                                    break;
-                                }
-                                else try {
-                                    tileWriter.write(line + "\n");
-                                } catch (IOException e) {
-                                    System.err.println("error writing to file: " + tileFn);
-                                    e.printStackTrace();
-                                }
-                            }
-                            else if (line.contains(" id=\"" + id + "\"")) {
-                                try {
-                                    tileWriter.write(line + "\n");
-                                } catch (IOException e) {
-                                    System.err.println("error writing to file: " + tileFn);
-                                    e.printStackTrace();
-                                }
-                                parse = true;
-                            }
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("error opening file: " + nodesExtraFn);
-                e.printStackTrace();
-            } finally {
-                try {
-                    tileWriter.flush();
-                } catch (IOException e) {
-                    System.err.println("error flushing file: " + tileFn);
-                    e.printStackTrace();
-                }
-                //close BufferedReader
-                try {
-                    br.close();
-                } catch (Exception e) {
-                    System.err.println("error closing BufferedReader");
-                    e.printStackTrace();
-                }
-            }
+            local = slim ? new RecordReader(nodesFn) : (NodeArena)nodesWriter;
         } catch (IOException e) {
             System.err.println("error opening file: " + nodesFn);
             e.printStackTrace();
+            return;
         }
-    }
-    /**
-     * writeWaysFromTmp: write way data from temporary files to output file
-     */
-    public void writeWaysFromTmp() {
-        String line;
-
         try {
-            FileReader fr = new FileReader(waysFn);
-            BufferedReader br = new BufferedReader(fr);
-
-            while ((line = br.readLine()) != null) {
-                //read line, write line
-                try {
-                    tileWriter.write(line + "\n");
-                } catch (IOException e) {
-                    System.err.println("error writing to file: " + tileFn);
-                    e.printStackTrace();
-                }
-            }
-            //close BufferedReader
+            extra = slim ? new RecordReader(nodesExtraFn) : (NodeArena)nodesExtraWriter;
+        } catch (IOException e) {
+            System.err.println("error opening file: " + nodesExtraFn);
+            e.printStackTrace();
             try {
-                br.close();
-            } catch (Exception e) {
-                System.err.println("error closing BufferedReader");
-                e.printStackTrace();
+                local.release();
+            } catch (IOException e2) {
+                e2.printStackTrace();
+            }
+            return;
+        }
+        
+        int i = 0, j = 0;
+        int localSize = nodeOffsets.size(), extraSize = extraOffsets.size();
+        
+        try {
+            while (i < localSize || j < extraSize) {
+                if (j == extraSize || (i < localSize && nodeOffsets.id(i) < extraOffsets.id(j))) {
+                    local.copy(nodeOffsets.offset(i), nodeOffsets.length(i, 0), tileWriter);
+                    i++;
+                }
+                else {
+                    //a copy in nodes-extra takes precedence
+                    if (i < localSize && nodeOffsets.id(i) == extraOffsets.id(j)) i++;
+                    
+                    extra.copy(extraOffsets.offset(j), extraOffsets.length(j, 0), tileWriter);
+                    j++;
+                }
             }
         } catch (IOException e) {
-            System.err.println("error opening file: " + waysFn);
+            System.err.println("error writing to file: " + tileFn);
             e.printStackTrace();
         } finally {
             try {
-                tileWriter.flush();
+                local.release();
+                extra.release();
             } catch (IOException e) {
-                System.err.println("error flushing file: " + waysFn);
+                System.err.println("error closing temporary node files of tile " + tn);
                 e.printStackTrace();
             }
         }
@@ -379,39 +340,46 @@ public class Tile {
     /**
      * writeWaysFromTmp: write way data from temporary files to output file
      */
+    public void writeWaysFromTmp() {
+        copyToTile(waysFn);
+    }
+
+    /**
+     * writeRelationsFromTmp: write relation data from temporary files to output file
+     */
     public void writeRelationsFromTmp() {
-        String line;
+        copyToTile(relationsFn);
+    }
+
+    /**
+     * copyToTile: copy the bytes of a temporary file to the output file
+     * @param fn
+     */
+    void copyToTile(String fn) {
+        byte[] buffer = new byte[65536];
+        int n;
 
         try {
-            FileReader fr = new FileReader(relationsFn);
-            BufferedReader br = new BufferedReader(fr);
+            InputStream in = new FileInputStream(fn);
 
-            while ((line = br.readLine()) != null) {
-                //read line, write line
-                try {
-                    tileWriter.write(line + "\n");
-                } catch (IOException e) {
-                    System.err.println("error writing to file: " + tileFn);
-                    e.printStackTrace();
+            try {
+                while ((n = in.read(buffer)) > 0) {
+                    tileWriter.write(buffer, 0, n);
                 }
+            } catch (IOException e) {
+                System.err.println("error writing to file: " + tileFn);
+                e.printStackTrace();
             }
-            //close BufferedReader
+            //close InputStream
             try {
-                br.close();
+                in.close();
             } catch (Exception e) {
-                System.err.println("error closing BufferedReader");
+                System.err.println("error closing InputStream");
                 e.printStackTrace();
             }
         } catch (IOException e) {
-            System.err.println("error opening file: " + relationsFn);
+            System.err.println("error opening file: " + fn);
             e.printStackTrace();
-        } finally {
-            try {
-                tileWriter.flush();
-            } catch (IOException e) {
-                System.err.println("error flushing file: " + relationsFn);
-                e.printStackTrace();
-            }
         }
     }
 
@@ -420,7 +388,7 @@ public class Tile {
      */
     public void writeClosingTags() {
         try {
-            tileWriter.write("</osm>\n");
+            write(tileWriter, "</osm>\n");
         } catch (IOException e) {
             System.err.println("error writing to file: " + tileFn);
             e.printStackTrace();
@@ -451,4 +419,14 @@ public class Tile {
             System.err.println("error deleting directory: " + dir);
         }
     }
+
+    /**
+     * write: write a String as UTF-8
+     * @param out
+     * @param s
+     * @throws IOException
+     */
+    static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -15,28 +15,44 @@
 
 package osmt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 
 public class TileReader {
     String inputFile;
-    BufferedReader inputReader;
+    XmlScanner scanner;
     
     public long tn;
-    public String previousLine;
+    public boolean pending;     //the scanner's current element has not been processed yet
+    
+    long id;        //of the current element, during the streaming merge
+    int index;      //in the input files, orders copies of the same element
 
     public TileReader(String fn, long tn) {
         inputFile = fn;
         this.tn = tn;
-        previousLine = "";
+        pending = false;
         
         try {
-            FileReader fr = new FileReader(fn);
-            inputReader = new BufferedReader(fr);
-        } catch (FileNotFoundException e) {
+            open();
+        } catch (IOException e) {
             System.err.println("Error: File not found.");
             System.exit(1);
         }
     }
+    
+    /**
+     * open: start reading the file from the beginning, decompressing it if
+     * it is gzip or bzip2 compressed, and converting it to XML if it is PBF
+     * @throws IOException
+     */
+    void open() throws IOException {
+        Input in = new Input(inputFile, 1);
+        
+        if (PbfReader.isPbf(in.stream)) {
+            scanner = new XmlScanner(new PbfReader(in.stream, 1).xml(), 65536);
+        }
+        else {
+            scanner = new XmlScanner(in.stream, 65536);
+        }
+    }
 }
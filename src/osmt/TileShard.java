@@ -0,0 +1,226 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writer stage of the split pipeline. Each shard owns a group of tiles and a
+ * thread that does all writes to their temporary data, so a tile is only ever
+ * written by one thread and its writes keep the order in which Split issued
+ * them. Each shard has its own TileWriterPool.
+ *
+ * Writes are collected in batches and handed to the thread through a bounded
+ * queue; a fixed number of batches circulates, so Split waits when the shard
+ * falls behind.
+ *
+ * A REMOTE_NODE write reads the node data of a tile that may belong to another
+ * shard. Split calls sync() on all shards once the input has moved past the
+ * nodes, so these reads only see node data that is no longer written to.
+ */
+public class TileShard implements Runnable {
+    static final int NODE = 0;          //first line of a node
+    static final int NODE_LINE = 1;
+    static final int WAY_LINE = 2;
+    static final int RELATION_LINE = 3;
+    static final int REMOTE_NODE = 4;   //copy node id from another tile
+
+    static final int BATCHES = 4;
+    static final int MAX_OPS = 4096;
+    static final int MAX_BYTES = 1 << 18;
+
+    /**
+     * A batch of writes; line i is data[off[i], off[i] + len[i]).
+     */
+    static class Batch {
+        byte[] data = new byte[MAX_BYTES];
+        int size, count;
+        int[] op = new int[MAX_OPS];
+        int[] off = new int[MAX_OPS];
+        int[] len = new int[MAX_OPS];
+        long[] id = new long[MAX_OPS];
+        Tile[] tile = new Tile[MAX_OPS];
+        Tile[] remote = new Tile[MAX_OPS];
+    }
+
+    private static final Batch END = new Batch();
+    private static final Batch SYNC = new Batch();
+
+    TileWriterPool pool;
+    ArrayList<Tile> tiles = new ArrayList<Tile>();  //the tiles of the shard, added by Split
+    private BlockingQueue<Batch> free, queue, synced;
+    private Batch current;
+    private Thread thread;
+    private volatile Exception error;
+
+    /**
+     * Constructor: start the writer thread
+     * @param pool - buffers and file handles of this shard's tiles
+     * @param name - thread name
+     */
+    public TileShard(TileWriterPool pool, String name) {
+        this.pool = pool;
+        free = new ArrayBlockingQueue<Batch>(BATCHES);
+        queue = new ArrayBlockingQueue<Batch>(BATCHES + 1);
+        synced = new ArrayBlockingQueue<Batch>(1);
+
+        for (int i = 0; i < BATCHES; i++) {
+            free.add(new Batch());
+        }
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * add: queue a line to be written to a tile
+     * @param op - NODE, NODE_LINE, WAY_LINE or RELATION_LINE
+     * @param tile
+     * @param id - node ID for NODE
+     * @param b
+     * @param off
+     * @param len
+     * @throws InterruptedException
+     */
+    void add(int op, Tile tile, long id, byte[] b, int off, int len) throws InterruptedException {
+        add(op, tile, id, null, b, off, len);
+    }
+
+    /**
+     * addRemoteNode: queue the copy of a node from another tile
+     * @param tile
+     * @param id
+     * @param remote - the tile the node is in
+     * @throws InterruptedException
+     */
+    void addRemoteNode(Tile tile, long id, Tile remote) throws InterruptedException {
+        add(REMOTE_NODE, tile, id, remote, null, 0, 0);
+    }
+
+    private void add(int op, Tile tile, long id, Tile remote, byte[] b, int off, int len) throws InterruptedException {
+        if (current != null && (current.count == MAX_OPS || current.size + len > current.data.length)) {
+            queue.put(current);
+            current = null;
+        }
+        if (current == null) {
+            current = free.take();
+            current.size = 0;
+            current.count = 0;
+        }
+        //a single line longer than the batch
+        if (len > current.data.length) {
+            current.data = new byte[len];
+        }
+
+        int i = current.count++;
+        if (len > 0) System.arraycopy(b, off, current.data, current.size, len);
+        current.op[i] = op;
+        current.off[i] = current.size;
+        current.len[i] = len;
+        current.id[i] = id;
+        current.tile[i] = tile;
+        current.remote[i] = remote;
+        current.size += len;
+    }
+
+    /**
+     * sync: wait until everything queued so far has been written
+     * @throws Exception - an error the writer thread ran into
+     */
+    void sync() throws Exception {
+        if (current != null) {
+            queue.put(current);
+            current = null;
+        }
+        queue.put(SYNC);
+        synced.take();
+
+        if (error != null) throw error;
+    }
+
+    /**
+     * finish: write everything that is queued and stop the thread
+     * @throws Exception - an error the writer thread ran into
+     */
+    void finish() throws Exception {
+        if (current != null) {
+            queue.put(current);
+            current = null;
+        }
+        queue.put(END);
+        thread.join();
+
+        if (error != null) throw error;
+    }
+
+    public void run() {
+        try {
+            Batch batch;
+
+            while ((batch = queue.take()) != END) {
+                if (batch == SYNC) {
+                    synced.put(SYNC);
+                    continue;
+                }
+                try {
+                    //after an error, keep draining so that Split does not block
+                    if (error == null) {
+                        for (int i = 0; i < batch.count; i++) {
+                            apply(batch, i);
+                        }
+                    }
+                } catch (Exception e) {
+                    error = e;
+                }
+                Arrays.fill(batch.tile, 0, batch.count, null);
+                Arrays.fill(batch.remote, 0, batch.count, null);
+                free.put(batch);
+            }
+        } catch (InterruptedException e) {
+            //the pipeline is shutting down
+        }
+    }
+
+    /**
+     * apply: do write i of a batch
+     * @param batch
+     * @param i
+     * @throws IOException
+     */
+    private void apply(Batch batch, int i) throws IOException {
+        Tile tile = batch.tile[i];
+
+        switch (batch.op[i]) {
+        case NODE:
+            tile.writeTmpNode(batch.id[i], batch.data, batch.off[i], batch.len[i]);
+            break;
+        case NODE_LINE:
+            tile.writeTmpNodes(batch.data, batch.off[i], batch.len[i]);
+            break;
+        case WAY_LINE:
+            tile.writeTmpWays(batch.data, batch.off[i], batch.len[i]);
+            break;
+        case RELATION_LINE:
+            tile.writeTmpRelations(batch.data, batch.off[i], batch.len[i]);
+            break;
+        case REMOTE_NODE:
+            tile.writeRemoteNode(batch.id[i], batch.remote[i]);
+            break;
+        }
+    }
+}
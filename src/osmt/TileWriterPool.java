@@ -0,0 +1,157 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Shared resources of all BufferedTileWriters.
+ *
+ * Memory: when the writers together buffer more than the budget, the largest
+ * buffers are written to their files first until half of the budget is free
+ * again, so few large writes replace many small ones.
+ *
+ * File handles: at most maxOpen files are open at a time. When another one is
+ * needed, the least recently used file is closed; its writer reopens it the
+ * next time it writes or reads.
+ *
+ * The pool is shared by the tiles of one TileShard. Its methods are
+ * synchronized, since node data is also read by the writer threads of other
+ * shards (see Tile.writeRemoteNode).
+ */
+public class TileWriterPool {
+    private long budget, buffered;
+    private ArrayList<BufferedTileWriter> writers;
+    private int maxOpen;
+    private LinkedHashMap<BufferedTileWriter, Boolean> open;   //in LRU order
+
+    /**
+     * Constructor
+     * @param budget - memory for buffered output in bytes
+     * @param maxOpen - maximum number of open files
+     */
+    public TileWriterPool(long budget, int maxOpen) {
+        this.budget = budget;
+        this.maxOpen = Math.max(1, maxOpen);
+        buffered = 0;
+        writers = new ArrayList<BufferedTileWriter>();
+        open = new LinkedHashMap<BufferedTileWriter, Boolean>(16, 0.75f, true);
+    }
+
+    synchronized void register(BufferedTileWriter w) {
+        w.poolIndex = writers.size();
+        writers.add(w);
+    }
+
+    synchronized void unregister(BufferedTileWriter w) throws IOException {
+        close(w);
+        
+        if (w.poolIndex < 0) return;
+
+        //move the last writer into the gap
+        BufferedTileWriter last = writers.remove(writers.size() - 1);
+        if (last != w) {
+            writers.set(w.poolIndex, last);
+            last.poolIndex = w.poolIndex;
+        }
+        w.poolIndex = -1;
+    }
+
+    /**
+     * open: get an open handle for a writer's file, closing the least
+     * recently used file if too many are open
+     * @param w
+     * @return
+     * @throws IOException
+     */
+    synchronized FileChannel open(BufferedTileWriter w) throws IOException {
+        if (w.out != null) {
+            open.get(w);    //mark as recently used
+            return w.out;
+        }
+
+        if (open.size() >= maxOpen) {
+            Iterator<BufferedTileWriter> eldest = open.keySet().iterator();
+            BufferedTileWriter e = eldest.next();
+            eldest.remove();
+            e.out.close();
+            e.out = null;
+        }
+
+        w.out = FileChannel.open(Paths.get(w.fileName), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        open.put(w, Boolean.TRUE);
+        return w.out;
+    }
+
+    /**
+     * close: close a writer's file if it is open
+     * @param w
+     * @throws IOException
+     */
+    synchronized void close(BufferedTileWriter w) throws IOException {
+        if (w.out != null) {
+            open.remove(w);
+            w.out.close();
+            w.out = null;
+        }
+    }
+
+    /**
+     * buffered: account for bytes a writer has buffered
+     * @param n
+     * @throws IOException
+     */
+    synchronized void buffered(int n) throws IOException {
+        buffered += n;
+
+        if (buffered > budget) {
+            flushLargest();
+        }
+    }
+
+    /**
+     * released: account for bytes a writer has written to its file
+     * @param n
+     */
+    synchronized void released(int n) {
+        buffered -= n;
+    }
+
+    /**
+     * flushLargest: flush the largest buffers until half of the budget is free
+     * @throws IOException
+     */
+    private void flushLargest() throws IOException {
+        BufferedTileWriter[] bySize = writers.toArray(new BufferedTileWriter[writers.size()]);
+
+        Arrays.sort(bySize, new Comparator<BufferedTileWriter>() {
+            public int compare(BufferedTileWriter a, BufferedTileWriter b) {
+                return Integer.compare(b.buffered(), a.buffered());
+            }
+        });
+
+        for (BufferedTileWriter w : bySize) {
+            if (buffered <= budget / 2 || w.buffered() == 0) break;
+            w.release();
+        }
+    }
+}
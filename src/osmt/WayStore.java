@@ -0,0 +1,44 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+package osmt;
+
+import java.io.IOException;
+
+/**
+ * A list of long values per way (e.g. the tile numbers of the way), kept so
+ * that relation members can be resolved after the way has been processed.
+ */
+public interface WayStore {
+    /**
+     * put: store the values of a way
+     * @param wayId
+     * @param values
+     * @param count - number of values used from the array
+     * @throws IOException
+     */
+    void put(long wayId, long[] values, int count) throws IOException;
+
+    /**
+     * get: the values of a way
+     * @param wayId
+     * @return the values, or null if the way has not been stored
+     * @throws IOException
+     */
+    long[] get(long wayId) throws IOException;
+
+    /**
+     * close: release the store
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
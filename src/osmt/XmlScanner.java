@@ -0,0 +1,268 @@
+/*
+ *  This file is part of OSMT.
+ *
+ *  OSMT is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OSMT is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.    See the
+ *  GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming scanner for OSM XML that works on raw bytes. next() moves to the
+ * next element tag (start, end or empty-element tag) and classifies it by its
+ * name in the same pass; the tag stays in the buffer as a UTF-8 byte slice, so
+ * it can be parsed with Attributes or copied to an output without decoding.
+ *
+ * The scanner does not depend on line breaks: every tag is one element, no
+ * matter how the input is formatted. Processing instructions and comments are
+ * skipped. The "line" of an element is the tag plus the indentation in front
+ * of it, which for one-element-per-line input is exactly the input line.
+ */
+public class XmlScanner {
+    public static final int OTHER = 0;
+    public static final int OSM = 1;
+    public static final int OSM_END = 2;
+    public static final int BOUNDS = 3;
+    public static final int NODE = 4;
+    public static final int NODE_END = 5;
+    public static final int WAY = 6;
+    public static final int WAY_END = 7;
+    public static final int ND = 8;
+    public static final int RELATION = 9;
+    public static final int RELATION_END = 10;
+    public static final int MEMBER = 11;
+    public static final int TAG = 12;
+
+    //longest indentation kept in front of a tag
+    static final int MAX_INDENT = 256;
+
+    private InputStream in;
+    private int pos, limit;
+    private long base;      //offset of buf[0] in the input
+
+    //the current element: buf[start, end) is the tag, buf[lineStart, end) the line
+    public byte[] buf;
+    public int kind, lineStart, start, end;
+    public boolean empty;
+
+    public XmlScanner(InputStream in) {
+        this(in, 1 << 20);
+    }
+
+    public XmlScanner(InputStream in, int bufferSize) {
+        this(in, bufferSize, 0);
+    }
+
+    /**
+     * Constructor
+     * @param in
+     * @param bufferSize
+     * @param offset - offset of the input stream in the file, for offset()
+     */
+    public XmlScanner(InputStream in, int bufferSize, long offset) {
+        this.in = in;
+        buf = new byte[bufferSize];
+        pos = limit = 0;
+        base = offset;
+    }
+
+    /**
+     * offset: the offset of a buffer position in the file
+     * @param i - e.g. start or lineStart
+     * @return
+     */
+    public long offset(int i) {
+        return base + i;
+    }
+
+    /**
+     * next: move to the next element
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int from = pos;
+            int i = pos;
+
+            //find '<'
+            while (true) {
+                while (i < limit && buf[i] != '<') i++;
+                if (i < limit) break;
+
+                int shift = compact(Math.max(from, limit - MAX_INDENT));
+                from -= shift;
+                i -= shift;
+                if (!read()) {
+                    pos = limit;
+                    return false;
+                }
+            }
+
+            int lt = i;
+            boolean comment = false;
+
+            //find the end of the tag, skipping quoted attribute values
+            int j = lt + 1;
+            byte quote = 0;
+
+            while (true) {
+                while (j < limit) {
+                    byte c = buf[j];
+
+                    if (j == lt + 3 && c == '-' && buf[lt + 1] == '!' && buf[lt + 2] == '-') {
+                        comment = true;
+                    }
+                    if (comment) {
+                        if (c == '>' && buf[j - 1] == '-' && buf[j - 2] == '-' && j >= lt + 6) break;
+                    }
+                    else if (quote != 0) {
+                        if (c == quote) quote = 0;
+                    }
+                    else if (c == '"' || c == '\'') {
+                        quote = c;
+                    }
+                    else if (c == '>') {
+                        break;
+                    }
+                    j++;
+                }
+                if (j < limit) break;
+
+                int shift = compact(from);
+                from -= shift;
+                lt -= shift;
+                j -= shift;
+                if (!read()) {
+                    pos = limit;
+                    return false;
+                }
+            }
+
+            pos = j + 1;
+
+            //processing instruction, comment, doctype
+            if (buf[lt + 1] == '?' || buf[lt + 1] == '!') {
+                continue;
+            }
+
+            int k = lt;
+            while (k > from && (buf[k - 1] == ' ' || buf[k - 1] == '\t')) k--;
+
+            lineStart = k;
+            start = lt;
+            end = j + 1;
+            empty = buf[j - 1] == '/';
+            kind = classify(buf, lt + 1, j);
+            return true;
+        }
+    }
+
+    /**
+     * classify: determine the kind of a tag from its name
+     * @param buf
+     * @param i - first byte after '<'
+     * @param j - position of '>'
+     * @return
+     */
+    static int classify(byte[] buf, int i, int j) {
+        boolean endTag = buf[i] == '/';
+        if (endTag) i++;
+
+        int n = i;
+        while (n < j && buf[n] != ' ' && buf[n] != '\t' && buf[n] != '\n' && buf[n] != '\r' && buf[n] != '/') n++;
+
+        switch (n - i) {
+        case 2:
+            if (buf[i] == 'n' && buf[i + 1] == 'd') return endTag ? OTHER : ND;
+            break;
+        case 3:
+            if (Attributes.match(buf, i, "tag")) return endTag ? OTHER : TAG;
+            if (Attributes.match(buf, i, "way")) return endTag ? WAY_END : WAY;
+            if (Attributes.match(buf, i, "osm")) return endTag ? OSM_END : OSM;
+            break;
+        case 4:
+            if (Attributes.match(buf, i, "node")) return endTag ? NODE_END : NODE;
+            break;
+        case 6:
+            if (Attributes.match(buf, i, "member")) return endTag ? OTHER : MEMBER;
+            if (Attributes.match(buf, i, "bounds")) return endTag ? OTHER : BOUNDS;
+            break;
+        case 8:
+            if (Attributes.match(buf, i, "relation")) return endTag ? RELATION_END : RELATION;
+            break;
+        }
+        return OTHER;
+    }
+
+    /**
+     * compact: move the bytes from keep on to the start of the buffer
+     * @param keep
+     * @return the number of bytes the content moved
+     */
+    private int compact(int keep) {
+        if (keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, limit - keep);
+            limit -= keep;
+            base += keep;
+            pos = Math.max(0, pos - keep);
+        }
+        return keep;
+    }
+
+    /**
+     * read: append input to the buffer, growing it if it is full
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    private boolean read() throws IOException {
+        if (limit == buf.length) {
+            byte[] larger = new byte[buf.length*2];
+            System.arraycopy(buf, 0, larger, 0, limit);
+            buf = larger;
+        }
+
+        int n = in.read(buf, limit, buf.length - limit);
+
+        if (n < 0) return false;
+        limit += n;
+        return true;
+    }
+
+    /**
+     * writeLine: copy the line of the current element and a line break
+     * @param out
+     * @throws IOException
+     */
+    public void writeLine(OutputStream out) throws IOException {
+        out.write(buf, lineStart, end - lineStart);
+        out.write('\n');
+    }
+
+    /**
+     * line: the line of the current element as a String
+     * @return
+     */
+    public String line() {
+        return new String(buf, lineStart, end - lineStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * close: close the input
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+}